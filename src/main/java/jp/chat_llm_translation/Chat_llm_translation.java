@@ -32,6 +32,8 @@ public class Chat_llm_translation implements ModInitializer {
 
         // LlamaServerManagerを初期化
         llamaServerManager = new LlamaServerManager();
+        llamaServerManager.setEndpointListener(chatHandler::onLlamaEndpointsChanged);
+        chatHandler.setServerReadySupplier(llamaServerManager::getReadyFuture);
 
         // サーバー停止時にRAGストレージを保存
         ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
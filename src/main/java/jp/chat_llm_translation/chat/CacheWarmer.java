@@ -0,0 +1,161 @@
+package jp.chat_llm_translation.chat;
+
+import jp.chat_llm_translation.config.ModConfig;
+import jp.chat_llm_translation.llm.LLMClient;
+import jp.chat_llm_translation.rag.RAGStorage;
+import jp.chat_llm_translation.storage.ServerStorageManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * サーバー参加時に翻訳キャッシュを温めるクラス
+ * RAGストレージの読み込みが終わったら、使用回数・最終使用時刻の上位エントリをメモリ上の翻訳キャッシュに流し込み、
+ * 設定に応じてllama-serverのプロンプトキャッシュも事前に埋めます
+ * 処理は専用スレッドで行い、別のサーバーに移ったり切断した時点で中断します
+ */
+public class CacheWarmer {
+    /**
+     * 進捗を記録し、中断を確認する間隔（エントリ数）
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    private final ServerStorageManager storageManager;
+    private final LLMClient llmClient;
+    private final TranslationCache translationCache;
+    private final ModConfig config;
+    private final ExecutorService executor;
+
+    private volatile int processedCount;
+    private volatile int targetCount;
+    private volatile long elapsedMillis;
+    private volatile boolean running;
+
+    /**
+     * コンストラクタ
+     *
+     * @param storageManager サーバーストレージの管理
+     * @param llmClient プロンプトキャッシュを埋めるLLMクライアント
+     * @param translationCache 温める翻訳キャッシュ
+     */
+    public CacheWarmer(ServerStorageManager storageManager, LLMClient llmClient, TranslationCache translationCache) {
+        this.storageManager = storageManager;
+        this.llmClient = llmClient;
+        this.translationCache = translationCache;
+        this.config = ModConfig.getInstance();
+        this.elapsedMillis = -1;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "chat-llm-translation-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * サーバーのキャッシュを温める（非同期）
+     * RAGストレージの読み込み完了を待ってから開始します
+     * RAGのエントリには翻訳方向がないため、コンテキスト（発言者）が自分のエントリを送信、それ以外を受信として扱います
+     *
+     * @param serverStorage 参加したサーバーのストレージ
+     * @param localPlayerName 自分のプレイヤー名（不明な場合はnull、すべて受信として扱う）
+     * @return 翻訳キャッシュに追加したエントリ数のCompletableFuture
+     */
+    public CompletableFuture<Integer> warmUp(ServerStorageManager.ServerStorage serverStorage, String localPlayerName) {
+        return serverStorage.ragStorageFuture.thenApplyAsync(ragStorage -> run(serverStorage, ragStorage, localPlayerName), executor);
+    }
+
+    /**
+     * 上位エントリを翻訳キャッシュに読み込む（ウォームアップ用スレッドで実行）
+     */
+    private int run(ServerStorageManager.ServerStorage serverStorage, RAGStorage ragStorage, String localPlayerName) {
+        if (storageManager.getCurrentStorage() != serverStorage) {
+            return 0;
+        }
+
+        long startTime = System.currentTimeMillis();
+        List<RAGStorage.RAGEntry> entries = ragStorage.getTopEntries(config.maxCacheLoadOnJoin);
+        running = true;
+        processedCount = 0;
+        targetCount = entries.size();
+
+        System.out.println("[ChatLLM] Warming up translation cache: " + entries.size() + " entries (out of "
+                + ragStorage.size() + ") for server: " + serverStorage.serverAddress);
+
+        int added = 0;
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0 && i % CHUNK_SIZE == 0) {
+                    processedCount = i;
+                    if (storageManager.getCurrentStorage() != serverStorage) {
+                        System.out.println("[ChatLLM] Cache warm-up cancelled after " + i + " entries: " + serverStorage.serverAddress);
+                        return added;
+                    }
+                    System.out.println("[ChatLLM] Cache warm-up: " + i + "/" + entries.size());
+                }
+
+                // 参加後に翻訳された結果の方が新しいので上書きしない
+                RAGStorage.RAGEntry entry = entries.get(i);
+                boolean outgoing = localPlayerName != null && localPlayerName.equals(entry.context);
+                String targetLanguage = outgoing ? config.outgoingTargetLanguage : config.targetLanguage;
+                TranslationCache.Key key = TranslationCache.key(serverStorage.serverAddress, outgoing, targetLanguage, entry.originalText);
+                if (translationCache.putIfAbsent(key, entry.translatedText)) {
+                    added++;
+                }
+            }
+            processedCount = entries.size();
+        } finally {
+            elapsedMillis = System.currentTimeMillis() - startTime;
+            running = false;
+        }
+
+        System.out.println("[ChatLLM] Cache warm-up complete: " + added + " entries added in " + elapsedMillis
+                + " ms for server: " + serverStorage.serverAddress);
+
+        if (config.warmUpPromptCache && !entries.isEmpty()) {
+            prefillPromptCache(entries.get(0).originalText);
+        }
+        return added;
+    }
+
+    /**
+     * 受信・送信の翻訳先言語ごとにllama-serverのプロンプトキャッシュを埋める
+     *
+     * @param sampleText 最もよく使われるメッセージ
+     */
+    private void prefillPromptCache(String sampleText) {
+        long startTime = System.currentTimeMillis();
+        List<CompletableFuture<Void>> prefills = new ArrayList<>();
+        prefills.add(llmClient.prefillPromptCacheAsync(sampleText, config.targetLanguage));
+        if (!config.outgoingTargetLanguage.equals(config.targetLanguage)) {
+            prefills.add(llmClient.prefillPromptCacheAsync(sampleText, config.outgoingTargetLanguage));
+        }
+
+        CompletableFuture.allOf(prefills.toArray(new CompletableFuture[0])).whenComplete((result, ex) -> {
+            if (ex != null) {
+                if (config.debugMode) {
+                    System.err.println("[ChatLLM] Prompt cache warm-up failed: " + ex.getMessage());
+                }
+                return;
+            }
+            System.out.println("[ChatLLM] Prompt cache warm-up complete in " + (System.currentTimeMillis() - startTime) + " ms");
+        });
+    }
+
+    /**
+     * 直近のウォームアップの状況を取得（統計表示用）
+     *
+     * @return 進捗と所要時間（未実行の場合は"-"）
+     */
+    public String getStatus() {
+        if (running) {
+            return processedCount + "/" + targetCount;
+        }
+        if (elapsedMillis < 0) {
+            return "-";
+        }
+        return processedCount + "/" + targetCount + " in " + elapsedMillis + " ms";
+    }
+}
@@ -1,32 +1,87 @@
 package jp.chat_llm_translation.chat;
 
+import jp.chat_llm_translation.Chat_llm_translation;
 import jp.chat_llm_translation.config.ModConfig;
 import jp.chat_llm_translation.llm.LLMClient;
+import jp.chat_llm_translation.llm.LlamaServerManager;
+import jp.chat_llm_translation.llm.TranslationBatcher;
+import jp.chat_llm_translation.llm.TranslationScheduler;
+import jp.chat_llm_translation.llm.TranslationScheduler.Priority;
 import jp.chat_llm_translation.rag.RAGStorage;
 import jp.chat_llm_translation.storage.ServerStorageManager;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * チャットメッセージの翻訳を処理するハンドラ
  */
 public class ChatHandler {
+    // 送信待ちとして記録しておく先読み翻訳の最大数
+    private static final int MAX_PREFETCHED_KEYS = 64;
+
     private final LLMClient llmClient;
+    private final TranslationBatcher batcher;
+    private final OutgoingMessageSender outgoingSender;
+    private final PreTranslator preTranslator;
     private final ServerStorageManager storageManager;
+    private final CacheWarmer cacheWarmer;
+    private final ContextBuilder contextBuilder;
     private final ModConfig config;
-    private final ConcurrentHashMap<String, String> translationCache;
+    private final TranslationCache translationCache;
+    private final ConcurrentHashMap<String, InFlight> inFlightTranslations;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> speculativeTranslations;
+    // 先読み翻訳でキャッシュに入れたがまだ送信していないメッセージ（送信時にRAGへ登録するため）
+    private final Set<TranslationCache.Key> prefetchedKeys;
+    private final AtomicLong coalescedCount;
+    private final AtomicLong waitedForServerCount;
+    private volatile Supplier<CompletableFuture<Void>> serverReadySupplier;
+    private volatile String localPlayerName;
+
+    /**
+     * 実行中の翻訳（相乗りできるかどうかの判定のため、優先度と期限も保持）
+     *
+     * @param future 翻訳結果
+     * @param priority 先行するリクエストの優先度
+     * @param deadline 先行するリクエストの期限（エポックミリ秒、0は期限なし）
+     */
+    private record InFlight(CompletableFuture<String> future, Priority priority, long deadline) {
+        /**
+         * 指定した優先度・期限のリクエストがこの翻訳に相乗りしてよいかどうか
+         * 優先度が低い・期限が早い翻訳に相乗りすると、後回しにされたり破棄されたりするため相乗りしない
+         */
+        boolean covers(Priority otherPriority, long otherDeadline) {
+            return priority.compareTo(otherPriority) <= 0
+                    && (deadline == 0 || (otherDeadline != 0 && deadline >= otherDeadline));
+        }
+    }
 
     /**
      * コンストラクタ
      */
     public ChatHandler() {
         this.llmClient = new LLMClient();
+        this.batcher = new TranslationBatcher(llmClient);
+        this.outgoingSender = new OutgoingMessageSender(this);
+        this.preTranslator = new PreTranslator(this);
         this.storageManager = new ServerStorageManager();
         this.config = ModConfig.getInstance();
-        this.translationCache = new ConcurrentHashMap<>();
+        this.translationCache = new TranslationCache(config.translationCacheMaxKb * 1024L);
+        this.inFlightTranslations = new ConcurrentHashMap<>();
+        this.speculativeTranslations = new ConcurrentHashMap<>();
+        this.prefetchedKeys = ConcurrentHashMap.newKeySet();
+        this.coalescedCount = new AtomicLong();
+        this.waitedForServerCount = new AtomicLong();
+        this.cacheWarmer = new CacheWarmer(storageManager, llmClient, translationCache);
+        this.contextBuilder = new ContextBuilder(llmClient.getBackendPool());
     }
 
     /**
@@ -37,6 +92,37 @@ public class ChatHandler {
      * @return 翻訳されたメッセージのCompletableFuture
      */
     public CompletableFuture<String> handleIncomingMessage(String playerName, String message) {
+        return handleIncomingMessage(playerName, message, null);
+    }
+
+    /**
+     * 受信チャットメッセージを処理（非同期、ストリーミング対応）
+     *
+     * @param playerName プレイヤー名
+     * @param message メッセージ内容
+     * @param onPartial 翻訳途中の結果を受け取るコールバック（nullの場合は通知しない）
+     * @return 翻訳されたメッセージのCompletableFuture
+     */
+    public CompletableFuture<String> handleIncomingMessage(String playerName, String message, Consumer<String> onPartial) {
+        return handleIncomingMessage(playerName, message, onPartial, Priority.INCOMING);
+    }
+
+    /**
+     * 受信チャットメッセージを処理（非同期、優先度指定）
+     *
+     * @param playerName プレイヤー名
+     * @param message メッセージ内容
+     * @param onPartial 翻訳途中の結果を受け取るコールバック（nullの場合は通知しない）
+     * @param priority LLMリクエストの優先度
+     * @return 翻訳されたメッセージのCompletableFuture
+     */
+    private CompletableFuture<String> handleIncomingMessage(String playerName, String message, Consumer<String> onPartial, Priority priority) {
+        // 受信時刻から翻訳の期限を決める（自動翻訳の受信メッセージのみ）
+        long receivedAt = System.currentTimeMillis();
+        long deadline = priority == Priority.INCOMING && config.incomingTranslationDeadline > 0
+                ? receivedAt + config.incomingTranslationDeadline
+                : 0;
+
         System.out.println("[ChatLLM] handleIncomingMessage: player=" + playerName + ", message=" + message);
         System.out.println("[ChatLLM] translationEnabled=" + config.translationEnabled + ", autoTranslateIncoming=" + config.autoTranslateIncoming);
 
@@ -46,22 +132,30 @@ public class ChatHandler {
         }
 
         // サーバーストレージを取得
-        ChatHistory chatHistory = storageManager.getCurrentChatHistory();
-        RAGStorage ragStorage = storageManager.getCurrentRAGStorage();
+        ServerStorageManager.ServerStorage serverStorage = storageManager.getCurrentStorage();
 
-        if (chatHistory == null || ragStorage == null) {
+        if (serverStorage == null) {
             System.out.println("[ChatLLM] No server storage available, returning original");
             return CompletableFuture.completedFuture(message);
         }
+        ChatHistory chatHistory = serverStorage.chatHistory;
+        RAGStorage ragStorage = serverStorage.getRAGStorage();
 
         // キャッシュをチェック
-        String cached = translationCache.get(message);
+        TranslationCache.Key cacheKey = cacheKey(serverStorage, message, false);
+        String cached = translationCache.get(cacheKey);
         if (cached != null) {
             System.out.println("[ChatLLM] Cache hit: " + message + " -> " + cached);
             chatHistory.addMessage(playerName, message, cached, false);
             return CompletableFuture.completedFuture(cached);
         }
 
+        // RAGストレージの読み込み中はRAGを使わずにLLMで翻訳
+        if (ragStorage == null) {
+            System.out.println("[ChatLLM] RAG storage is loading, translating with LLM");
+            return translateWithLLM(playerName, message, false, onPartial, priority, deadline);
+        }
+
         System.out.println("[ChatLLM] Cache miss, checking RAG storage");
 
         // RAGストレージで完全一致を検索
@@ -69,14 +163,26 @@ public class ChatHandler {
         if (exactMatch != null) {
             System.out.println("[ChatLLM] RAG exact match: " + message + " -> " + exactMatch.translatedText);
             String translated = exactMatch.translatedText;
-            translationCache.put(message, translated);
+            translationCache.put(cacheKey, translated);
+            chatHistory.addMessage(playerName, message, translated, false);
+            return CompletableFuture.completedFuture(translated);
+        }
+
+        // 表記ゆれ程度の違いしかないメッセージの翻訳を検索
+        RAGStorage.RAGEntry fuzzyMatch = config.fuzzyMatchEnabled
+                ? ragStorage.getFuzzyMatch(message, config.fuzzyMatchThreshold)
+                : null;
+        if (fuzzyMatch != null) {
+            System.out.println("[ChatLLM] RAG fuzzy match: " + message + " ~ " + fuzzyMatch.originalText + " -> " + fuzzyMatch.translatedText);
+            String translated = fuzzyMatch.translatedText;
+            translationCache.put(cacheKey, translated);
             chatHistory.addMessage(playerName, message, translated, false);
             return CompletableFuture.completedFuture(translated);
         }
 
         System.out.println("[ChatLLM] No cache/RAG match, translating with LLM");
-        // LLMで翻訳
-        return translateWithLLM(playerName, message, false);
+        // 意味的に近い翻訳がなければLLMで翻訳
+        return translateWithMemory(playerName, message, false, onPartial, priority, deadline);
     }
 
     /**
@@ -92,31 +198,89 @@ public class ChatHandler {
         }
 
         // サーバーストレージを取得
-        ChatHistory chatHistory = storageManager.getCurrentChatHistory();
-        RAGStorage ragStorage = storageManager.getCurrentRAGStorage();
+        ServerStorageManager.ServerStorage serverStorage = storageManager.getCurrentStorage();
 
-        if (chatHistory == null || ragStorage == null) {
+        if (serverStorage == null) {
             return CompletableFuture.completedFuture(message);
         }
+        ChatHistory chatHistory = serverStorage.chatHistory;
+        RAGStorage ragStorage = serverStorage.getRAGStorage();
 
         // キャッシュをチェック
-        String cached = translationCache.get(message);
+        TranslationCache.Key cacheKey = cacheKey(serverStorage, message, true);
+        String cached = translationCache.get(cacheKey);
         if (cached != null) {
             chatHistory.addMessage(playerName, message, cached, true);
+            // 先読みした翻訳は送信した時点で初めてRAGに登録する
+            if (prefetchedKeys.remove(cacheKey) && ragStorage != null) {
+                ragStorage.addOrUpdate(message, cached, playerName);
+            }
             return CompletableFuture.completedFuture(cached);
         }
 
+        // RAGストレージの読み込み中はRAGを使わずにLLMで翻訳
+        if (ragStorage == null) {
+            return translateWithLLM(playerName, message, true, null, Priority.OUTGOING, 0);
+        }
+
         // RAGストレージで完全一致を検索
         RAGStorage.RAGEntry exactMatch = ragStorage.getExactMatch(message);
         if (exactMatch != null) {
             String translated = exactMatch.translatedText;
-            translationCache.put(message, translated);
+            translationCache.put(cacheKey, translated);
             chatHistory.addMessage(playerName, message, translated, true);
             return CompletableFuture.completedFuture(translated);
         }
 
-        // LLMで翻訳
-        return translateWithLLM(playerName, message, true);
+        // 表記ゆれ程度の違いしかないメッセージの翻訳を検索
+        RAGStorage.RAGEntry fuzzyMatch = config.fuzzyMatchEnabled
+                ? ragStorage.getFuzzyMatch(message, config.fuzzyMatchThreshold)
+                : null;
+        if (fuzzyMatch != null) {
+            String translated = fuzzyMatch.translatedText;
+            translationCache.put(cacheKey, translated);
+            chatHistory.addMessage(playerName, message, translated, true);
+            return CompletableFuture.completedFuture(translated);
+        }
+
+        // 意味的に近い翻訳がなければLLMで翻訳
+        return translateWithMemory(playerName, message, true, null, Priority.OUTGOING, 0);
+    }
+
+    /**
+     * RAGストレージの意味検索で近いメッセージの翻訳を探し、なければLLMで翻訳
+     *
+     * @param playerName プレイヤー名
+     * @param message メッセージ
+     * @param isOutgoing 送信メッセージかどうか
+     * @param onPartial 翻訳途中の結果を受け取るコールバック（nullの場合はストリーミングしない）
+     * @param priority LLMリクエストの優先度
+     * @param deadline 翻訳の期限（エポックミリ秒、0は期限なし）
+     * @return 翻訳されたメッセージのCompletableFuture
+     */
+    private CompletableFuture<String> translateWithMemory(String playerName, String message, boolean isOutgoing,
+                                                          Consumer<String> onPartial, Priority priority, long deadline) {
+        ServerStorageManager.ServerStorage serverStorage = storageManager.getCurrentStorage();
+        RAGStorage ragStorage = serverStorage != null ? serverStorage.getRAGStorage() : null;
+
+        if (!config.semanticMatchEnabled || ragStorage == null) {
+            return translateWithLLM(playerName, message, isOutgoing, onPartial, priority, deadline);
+        }
+
+        // 埋め込みの計算はHTTPリクエストになるため、呼び出し元のスレッドでは実行しない
+        return CompletableFuture.supplyAsync(() -> ragStorage.getSemanticMatch(message, config.semanticMatchThreshold))
+                .exceptionally(ex -> null)
+                .thenCompose(match -> {
+                    if (match == null) {
+                        return translateWithLLM(playerName, message, isOutgoing, onPartial, priority, deadline);
+                    }
+
+                    System.out.println("[ChatLLM] RAG semantic match: " + message + " ~ " + match.originalText + " -> " + match.translatedText);
+                    String translated = match.translatedText;
+                    translationCache.put(cacheKey(serverStorage, message, isOutgoing), translated);
+                    serverStorage.chatHistory.addMessage(playerName, message, translated, isOutgoing);
+                    return CompletableFuture.completedFuture(translated);
+                });
     }
 
     /**
@@ -125,40 +289,99 @@ public class ChatHandler {
      * @param playerName プレイヤー名
      * @param message メッセージ
      * @param isOutgoing 送信メッセージかどうか
+     * @param onPartial 翻訳途中の結果を受け取るコールバック（nullの場合はストリーミングしない）
+     * @param priority LLMリクエストの優先度
+     * @param deadline 翻訳の期限（エポックミリ秒、0は期限なし）
      * @return 翻訳されたメッセージのCompletableFuture
      */
-    private CompletableFuture<String> translateWithLLM(String playerName, String message, boolean isOutgoing) {
+    private CompletableFuture<String> translateWithLLM(String playerName, String message, boolean isOutgoing,
+                                                       Consumer<String> onPartial, Priority priority, long deadline) {
         System.out.println("[ChatLLM] translateWithLLM: message=" + message + ", isOutgoing=" + isOutgoing);
 
-        // サーバーストレージを取得
-        ChatHistory chatHistory = storageManager.getCurrentChatHistory();
-        RAGStorage ragStorage = storageManager.getCurrentRAGStorage();
+        // サーバーストレージを取得（RAGストレージは翻訳完了時点で読み込み済みなら登録する）
+        ServerStorageManager.ServerStorage serverStorage = storageManager.getCurrentStorage();
 
-        if (chatHistory == null || ragStorage == null) {
+        if (serverStorage == null) {
             return CompletableFuture.completedFuture(message);
         }
+        ChatHistory chatHistory = serverStorage.chatHistory;
 
-        // 送信メッセージの場合はコンテキストなしで翻訳（会話と誤解されないように）
-        // 受信メッセージの場合のみコンテキストを使用
-        var contextMessages = isOutgoing ? null : chatHistory.getContextMessages(3);
+        // 似ている過去の翻訳を例として添え、受信メッセージの場合のみ会話の履歴も使用
+        // （送信メッセージは会話と誤解されないように履歴を付けない）
+        ContextBuilder.Context context = contextBuilder.build(serverStorage, message, isOutgoing, localPlayerName);
+        List<LLMClient.ChatMessage> contextMessages = context.messages();
 
         // 送信メッセージと受信メッセージで異なる言語設定を使用
         String targetLanguage = isOutgoing ? config.outgoingTargetLanguage : config.targetLanguage;
 
-        System.out.println("[ChatLLM] Calling LLM API with targetLanguage=" + targetLanguage);
-        // LLMで翻訳
-        return llmClient.translateAsync(message, contextMessages, targetLanguage)
+        // 同じ内容・方向・言語の翻訳が実行中ならその結果を共有（スパム時の重複リクエストを防ぐ）
+        String flightKey = inFlightKey(message, isOutgoing, targetLanguage);
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        InFlight inFlight = new InFlight(pending, priority, deadline);
+        InFlight existing = inFlightTranslations.putIfAbsent(flightKey, inFlight);
+        if (existing != null && !existing.covers(priority, deadline)) {
+            // 実行中の翻訳より優先度が高い・期限が遅い場合は相乗りせずに送り、以降の同一メッセージはこちらに相乗りさせる
+            inFlightTranslations.put(flightKey, inFlight);
+            existing = null;
+        }
+        boolean leader = existing == null;
+        CompletableFuture<String> shared = leader ? pending : existing.future();
+
+        if (leader) {
+
+            System.out.println("[ChatLLM] Calling LLM API with targetLanguage=" + targetLanguage);
+            // LLMで翻訳（自動受信メッセージはバッチに集め、ストリーミングが有効で途中経過の受け取り先がある場合は逐次受信）
+            CompletableFuture<String> translation;
+            CompletableFuture<String> speculative = isOutgoing ? speculativeTranslations.remove(flightKey) : null;
+            if (speculative != null && !speculative.isCancelled()) {
+                // 入力中に先読みした翻訳がまだ終わっていなければ、それを優先度を上げて使う
+                llmClient.getScheduler().promote(speculative, priority);
+                translation = speculative;
+            } else {
+                Supplier<CompletableFuture<String>> dispatch = () -> {
+                    if (priority == Priority.INCOMING && config.batchingEnabled) {
+                        return batcher.submit(message, context.examples(), context.history(), targetLanguage, onPartial != null ? throttle(onPartial) : null, deadline);
+                    } else if (onPartial != null && config.streamingTranslation) {
+                        return llmClient.translateStreamAsync(message, contextMessages, targetLanguage, throttle(onPartial), priority, deadline);
+                    } else {
+                        return llmClient.translateAsync(message, contextMessages, targetLanguage, priority, deadline);
+                    }
+                };
+                // llama-serverがモデルを読み込み中なら、失敗させずに準備ができるまで待ってから送る
+                CompletableFuture<Void> ready = awaitServerReady();
+                translation = ready.isDone() ? dispatch.get() : ready.thenCompose(ignored -> dispatch.get());
+            }
+
+            translation.whenComplete((translated, ex) -> {
+                // 結果を確定する前に登録を外し、以降の同一メッセージはキャッシュから返す
+                inFlightTranslations.remove(flightKey, inFlight);
+                if (ex != null) {
+                    pending.completeExceptionally(ex);
+                } else {
+                    pending.complete(translated);
+                }
+            });
+        } else {
+            coalescedCount.incrementAndGet();
+            System.out.println("[ChatLLM] Joined in-flight translation: " + message);
+        }
+
+        return shared
                 .thenApply(translated -> {
                     System.out.println("[ChatLLM] LLM returned: " + message + " -> " + translated);
 
                     // 翻訳結果をキャッシュに保存
-                    translationCache.put(message, translated);
+                    translationCache.put(cacheKey(serverStorage, message, isOutgoing), translated);
 
                     // チャット履歴に追加
                     chatHistory.addMessage(playerName, message, translated, isOutgoing);
 
                     // RAGストレージに追加（プレイヤー名をコンテキストとして）
-                    ragStorage.addOrUpdate(message, translated, playerName);
+                    // 共有した翻訳は実際にリクエストしたものだけを登録する
+                    RAGStorage ragStorage = serverStorage.getRAGStorage();
+                    if (leader && ragStorage != null) {
+                        ragStorage.addOrUpdate(message, translated, playerName);
+                    }
 
                     System.out.println("[ChatLLM] Translation complete: " + message + " -> " + translated);
 
@@ -166,6 +389,7 @@ public class ChatHandler {
                 })
                 .exceptionally(ex -> {
                     if (config.debugMode) {
+                        // 期限切れ・上限超過で破棄された翻訳もここに来る（元のメッセージのまま表示しない）
                         System.err.println("[ChatLLM] Translation error: " + ex.getMessage());
                     }
                     // エラー時は元のメッセージを返す
@@ -173,6 +397,100 @@ public class ChatHandler {
                 });
     }
 
+    /**
+     * 入力中の送信メッセージを先読みして翻訳し、キャッシュに入れる
+     * 送信時にキャッシュヒットすれば待ち時間なしで送信できます
+     * 送信時と同じくRAGの翻訳例を添えて翻訳し、RAGに完全一致・表記ゆれ一致があれば先読みしません
+     * 履歴やRAGには実際に送信したときにだけ登録します（送信時のキャッシュヒットで登録）
+     *
+     * @param draft 入力中のメッセージ
+     * @return 先読み翻訳のCompletableFuture（先読み不要の場合はnull）
+     */
+    public CompletableFuture<String> prefetchOutgoing(String draft) {
+        if (!config.translationEnabled || !config.autoTranslateOutgoing) {
+            return null;
+        }
+        ServerStorageManager.ServerStorage serverStorage = storageManager.getCurrentStorage();
+        if (serverStorage == null || draft == null || draft.isBlank() || draft.startsWith("/")) {
+            return null;
+        }
+        TranslationCache.Key cacheKey = cacheKey(serverStorage, draft, true);
+        if (translationCache.containsKey(cacheKey)) {
+            return null;
+        }
+
+        String targetLanguage = config.outgoingTargetLanguage;
+        String flightKey = inFlightKey(draft, true, targetLanguage);
+        if (inFlightTranslations.containsKey(flightKey) || speculativeTranslations.containsKey(flightKey)) {
+            return null;
+        }
+
+        // 送信時にRAGから即座に翻訳できるメッセージはLLMで先読みしない
+        RAGStorage ragStorage = serverStorage.getRAGStorage();
+        if (ragStorage != null && (ragStorage.getExactMatch(draft) != null
+                || (config.fuzzyMatchEnabled && ragStorage.getFuzzyMatch(draft, config.fuzzyMatchThreshold) != null))) {
+            return null;
+        }
+
+        // 送信時のtranslateWithLLMと同じ翻訳例を添える（先読み結果をそのまま送信に使うため）
+        List<LLMClient.ChatMessage> contextMessages = contextBuilder.build(serverStorage, draft, true, localPlayerName).messages();
+        CompletableFuture<String> translation = llmClient.translateAsync(draft, contextMessages, targetLanguage, Priority.SPECULATIVE, 0);
+        speculativeTranslations.put(flightKey, translation);
+        translation.whenComplete((translated, ex) -> {
+            speculativeTranslations.remove(flightKey, translation);
+            // 失敗時は元のテキストが返るので、その場合はキャッシュしない
+            if (ex == null && translated != null && !translated.equals(draft)) {
+                // 送信されなかった下書きが溜まり続けないように、上限を超えたら古い記録を捨てる
+                if (prefetchedKeys.size() >= MAX_PREFETCHED_KEYS) {
+                    prefetchedKeys.clear();
+                }
+                prefetchedKeys.add(cacheKey);
+                translationCache.put(cacheKey, translated);
+            }
+        });
+        return translation;
+    }
+
+    /**
+     * 先読み翻訳を取り消す（入力が変わって不要になった場合）
+     * まだ実行されていなければLLMには送信されません
+     *
+     * @param draft 先読みした入力中のメッセージ
+     * @param translation prefetchOutgoingが返したCompletableFuture
+     */
+    public void cancelPrefetch(String draft, CompletableFuture<String> translation) {
+        String flightKey = inFlightKey(draft, true, config.outgoingTargetLanguage);
+        if (speculativeTranslations.remove(flightKey, translation)) {
+            translation.cancel(false);
+        }
+    }
+
+    /**
+     * 実行中の翻訳を識別するキーを生成
+     * 大文字小文字と空白の違いは同一メッセージとして扱う
+     *
+     * @param message メッセージ
+     * @param isOutgoing 送信メッセージかどうか
+     * @param targetLanguage 翻訳先言語
+     * @return 実行中翻訳のキー
+     */
+    private static String inFlightKey(String message, boolean isOutgoing, String targetLanguage) {
+        return (isOutgoing ? "out" : "in") + '\u0000' + targetLanguage + '\u0000' + TranslationCache.normalize(message);
+    }
+
+    /**
+     * 翻訳キャッシュのキーを生成（サーバー・方向・翻訳先言語ごとに分ける）
+     *
+     * @param serverStorage 現在のサーバーストレージ
+     * @param message メッセージ
+     * @param isOutgoing 送信メッセージかどうか
+     * @return 翻訳キャッシュのキー
+     */
+    private TranslationCache.Key cacheKey(ServerStorageManager.ServerStorage serverStorage, String message, boolean isOutgoing) {
+        String targetLanguage = isOutgoing ? config.outgoingTargetLanguage : config.targetLanguage;
+        return TranslationCache.key(serverStorage.serverAddress, isOutgoing, targetLanguage, message);
+    }
+
     /**
      * クライアントのチャットに翻訳メッセージを表示
      *
@@ -207,6 +525,73 @@ public class ChatHandler {
         }
     }
 
+    /**
+     * 送信メッセージの翻訳結果を自分のチャットに表示（原文付き）
+     *
+     * @param originalMessage 元のメッセージ
+     * @param translatedMessage 翻訳されたメッセージ
+     */
+    public void displayOutgoingTranslation(String originalMessage, String translatedMessage) {
+        if (originalMessage.equals(translatedMessage)) {
+            return;
+        }
+
+        MinecraftClient client = MinecraftClient.getInstance();
+        if (client.player != null) {
+            String formattedMessage = config.outgoingLabelColor + "[送信翻訳] " +
+                                    config.outgoingTextColor + translatedMessage +
+                                    " " + config.outgoingOriginalLabelColor + "(原文: " +
+                                    config.outgoingOriginalTextColor + originalMessage +
+                                    config.outgoingOriginalLabelColor + ")";
+
+            client.player.sendMessage(
+                    Text.literal(formattedMessage),
+                    false
+            );
+        }
+    }
+
+    /**
+     * 翻訳途中の結果をアクションバーに表示
+     * チャット欄を途中経過で埋めないよう、確定した翻訳はdisplayTranslationで表示します
+     *
+     * @param originalMessage 元のメッセージ
+     * @param partialTranslation 途中までの翻訳
+     */
+    public void displayPartialTranslation(String originalMessage, String partialTranslation) {
+        if (partialTranslation == null || partialTranslation.isBlank() || originalMessage.equals(partialTranslation)) {
+            return;
+        }
+
+        MinecraftClient client = MinecraftClient.getInstance();
+        if (client.player != null) {
+            String formattedMessage = config.translationLabelColor + "[翻訳中] " +
+                                    config.translationTextColor + partialTranslation;
+
+            client.player.sendMessage(
+                    Text.literal(formattedMessage),
+                    true
+            );
+        }
+    }
+
+    /**
+     * 途中経過のコールバックをstreamingUpdateIntervalごとに間引く
+     *
+     * @param onPartial 元のコールバック
+     * @return 間引き付きのコールバック
+     */
+    private Consumer<String> throttle(Consumer<String> onPartial) {
+        AtomicLong lastUpdate = new AtomicLong();
+        return partial -> {
+            long now = System.currentTimeMillis();
+            long last = lastUpdate.get();
+            if (now - last >= config.streamingUpdateInterval && lastUpdate.compareAndSet(last, now)) {
+                onPartial.accept(partial);
+            }
+        };
+    }
+
     /**
      * 手動翻訳コマンド
      * ユーザーが手動で翻訳をトリガーする場合に使用
@@ -221,7 +606,7 @@ public class ChatHandler {
 
         String playerName = client.player.getName().getString();
 
-        handleIncomingMessage(playerName, message)
+        handleIncomingMessage(playerName, message, null, Priority.MANUAL)
                 .thenAccept(translated -> {
                     displayTranslation(message, translated);
                 });
@@ -272,6 +657,24 @@ public class ChatHandler {
         clearRAG();
     }
 
+    /**
+     * 自動起動したllama-serverの準備ができるまで待つCompletableFutureを取得
+     * 準備済みの場合、起動に失敗した・停止している場合は完了済みを返します（いつもどおり送って失敗させる）
+     * 待つ時間はserverReadyWaitMsまでで、過ぎた場合もそのまま送ります
+     */
+    private CompletableFuture<Void> awaitServerReady() {
+        Supplier<CompletableFuture<Void>> supplier = serverReadySupplier;
+        CompletableFuture<Void> ready = supplier != null ? supplier.get() : null;
+        if (ready == null || ready.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        waitedForServerCount.incrementAndGet();
+        System.out.println("[ChatLLM] Waiting for llama-server to finish loading the model");
+        return ready.copy()
+                .completeOnTimeout(null, config.serverReadyWaitMs, TimeUnit.MILLISECONDS)
+                .exceptionally(ex -> null);
+    }
+
     /**
      * 統計情報を取得
      */
@@ -282,14 +685,54 @@ public class ChatHandler {
         int historySize = (chatHistory != null) ? chatHistory.size() : 0;
         int ragSize = (ragStorage != null) ? ragStorage.size() : 0;
 
+        TranslationScheduler scheduler = llmClient.getScheduler();
+        LlamaServerManager serverManager = Chat_llm_translation.getLlamaServerManager();
+        long modelLoadMillis = serverManager != null ? serverManager.getModelLoadTimeMillis() : -1;
+
         return String.format(
-                "Cache: %d, History: %d, RAG: %d",
+                "Cache: %d (%d/%d KB, hit %.1f%% of %d, evicted %d), History: %d, RAG: %d, In-flight: %d, Coalesced: %d, Queue: %d/%d/%d, Shed: %d expired/%d dropped, Warm-up: %s, Backends: %s, Model load: %s (%d waited)",
                 translationCache.size(),
+                translationCache.getWeightedSize() / 1024,
+                translationCache.getMaxBytes() / 1024,
+                translationCache.getHitRate() * 100,
+                translationCache.getHitCount() + translationCache.getMissCount(),
+                translationCache.getEvictionCount(),
                 historySize,
-                ragSize
+                ragSize,
+                inFlightTranslations.size(),
+                coalescedCount.get(),
+                scheduler.getQueuedCount(Priority.OUTGOING),
+                scheduler.getQueuedCount(Priority.MANUAL),
+                scheduler.getQueuedCount(Priority.INCOMING),
+                scheduler.getExpiredCount(),
+                scheduler.getDroppedCount(),
+                cacheWarmer.getStatus(),
+                llmClient.getBackendPool().getStatus(),
+                modelLoadMillis >= 0 ? modelLoadMillis + " ms" : "-",
+                waitedForServerCount.get()
         );
     }
 
+    /**
+     * 自動起動したllama-serverのワーカーのURLを翻訳リクエストの振り分け先に反映
+     *
+     * @param endpoints 起動したワーカーのURL
+     */
+    public void onLlamaEndpointsChanged(List<String> endpoints) {
+        llmClient.setLlamaEndpoints(endpoints);
+    }
+
+    /**
+     * 自動起動したllama-serverの準備完了を取得する方法を設定
+     * 起動中・再起動中に届いた翻訳は準備ができるまで待たせ、再起動で失敗したリクエストは復帰後に送り直します
+     *
+     * @param supplier 準備完了のCompletableFutureを返す関数
+     */
+    public void setServerReadySupplier(Supplier<CompletableFuture<Void>> supplier) {
+        this.serverReadySupplier = supplier;
+        llmClient.setServerReadySupplier(supplier);
+    }
+
     /**
      * LLMサーバーへの接続テスト
      *
@@ -312,7 +755,18 @@ public class ChatHandler {
      * @param serverAddress サーバーアドレス（null の場合はシングルプレイ）
      */
     public void onServerJoin(String serverAddress) {
+        // ストレージの読み込みはバックグラウンドで行われ、完了を待たずに戻る
         storageManager.onServerJoin(serverAddress);
+
+        // RAGのエントリの翻訳方向を判定するため、自分のプレイヤー名を覚えておく
+        MinecraftClient client = MinecraftClient.getInstance();
+        localPlayerName = client.player != null ? client.player.getName().getString() : null;
+
+        // 読み込み完了後に上位エントリで翻訳キャッシュを温める
+        ServerStorageManager.ServerStorage serverStorage = storageManager.getCurrentStorage();
+        if (config.loadFullCacheOnJoin && serverStorage != null) {
+            cacheWarmer.warmUp(serverStorage, localPlayerName);
+        }
     }
 
     /**
@@ -334,4 +788,12 @@ public class ChatHandler {
     public ServerStorageManager getStorageManager() {
         return storageManager;
     }
+
+    public OutgoingMessageSender getOutgoingSender() {
+        return outgoingSender;
+    }
+
+    public PreTranslator getPreTranslator() {
+        return preTranslator;
+    }
 }
@@ -5,12 +5,18 @@ import jp.chat_llm_translation.llm.LLMClient.ChatMessage;
 
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * チャット履歴を管理するクラス
  * LLMのコンテキストとして使用するため、過去のメッセージを保持します
+ *
+ * 履歴は固定長のリングバッファで、追加は同期化されますが、読み取りはロックなしで行えます
+ * 読み取りは最新のN件を添字で直接取り出すためO(N)で、追加と競合しません
+ * 追加と同時に読み取った場合に上書き中のスロットを返さないよう、各スロットには通し番号を持たせています
+ *
+ * リスナーを設定すると、追加・クリアが通知されます（ディスクへの保存に使用）
  */
 public class ChatHistory {
     /**
@@ -23,30 +29,99 @@ public class ChatHistory {
         public final Instant timestamp;
         public final boolean isOutgoing; // true: 送信, false: 受信
 
+        /**
+         * LLMコンテキスト用のメッセージ（初めて使うときに作成、同時に作成されても内容は同じ）
+         */
+        private volatile List<ChatMessage> contextMessages;
+
         public ChatEntry(String playerName, String originalMessage, String translatedMessage, boolean isOutgoing) {
+            this(playerName, originalMessage, translatedMessage, isOutgoing, Instant.now());
+        }
+
+        public ChatEntry(String playerName, String originalMessage, String translatedMessage, boolean isOutgoing,
+                         Instant timestamp) {
             this.playerName = playerName;
             this.originalMessage = originalMessage;
             this.translatedMessage = translatedMessage;
-            this.timestamp = Instant.now();
+            this.timestamp = timestamp;
             this.isOutgoing = isOutgoing;
         }
+
+        /**
+         * このエントリのLLMコンテキスト用のメッセージを取得（作成済みのものを再利用）
+         *
+         * @return 変更できないChatMessageのリスト
+         */
+        public List<ChatMessage> getContextMessages() {
+            List<ChatMessage> messages = contextMessages;
+            if (messages == null) {
+                // プレイヤー名とメッセージを含むコンテキストを作成
+                ChatMessage context = new ChatMessage("user", String.format("[%s]: %s", playerName, originalMessage));
+
+                // 受信メッセージはassistant（翻訳済み）として、送信メッセージはuserとして追加
+                if (!isOutgoing && translatedMessage != null && !translatedMessage.equals(originalMessage)) {
+                    // 翻訳済みメッセージも含める
+                    messages = List.of(context, new ChatMessage("assistant", translatedMessage));
+                } else {
+                    messages = List.of(context);
+                }
+                contextMessages = messages;
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * 履歴の変更を受け取るリスナー（履歴のロック内で呼び出されるため、すぐに戻ること）
+     */
+    public interface Listener {
+        /**
+         * エントリが追加された
+         *
+         * @param entry 追加されたエントリ
+         */
+        void onAdded(ChatEntry entry);
+
+        /**
+         * 履歴がクリアされた
+         */
+        void onCleared();
+    }
+
+    /**
+     * リングバッファのスロット（通し番号で上書きを検出する）
+     */
+    private record Slot(long sequence, ChatEntry entry) {
     }
 
-    private final LinkedList<ChatEntry> history;
+    private final AtomicReferenceArray<Slot> slots;
     private final ModConfig config;
     private final int maxSize;
 
+    /**
+     * これまでに追加したエントリ数（次に追加するエントリの通し番号）
+     */
+    private volatile long writeCount;
+
+    /**
+     * 最後にクリアした時点のwriteCount（これより前のエントリは読み取らない）
+     */
+    private volatile long clearedCount;
+
+    private volatile Listener listener;
+
     /**
      * コンストラクタ
      */
     public ChatHistory() {
         this.config = ModConfig.getInstance();
-        this.maxSize = config.chatHistorySize;
-        this.history = new LinkedList<>();
+        this.maxSize = Math.max(1, config.chatHistorySize);
+        this.slots = new AtomicReferenceArray<>(maxSize);
     }
 
     /**
      * チャットメッセージを履歴に追加
+     * 履歴サイズが上限に達している場合、最も古いメッセージを上書きします
      *
      * @param playerName プレイヤー名
      * @param originalMessage 元のメッセージ
@@ -55,11 +130,57 @@ public class ChatHistory {
      */
     public synchronized void addMessage(String playerName, String originalMessage, String translatedMessage, boolean isOutgoing) {
         ChatEntry entry = new ChatEntry(playerName, originalMessage, translatedMessage, isOutgoing);
-        history.addLast(entry);
+        append(entry);
+
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onAdded(entry);
+        }
+    }
+
+    /**
+     * 保存されていたエントリを履歴の先頭に戻す（リスナーには通知しない）
+     * 復元より前に追加されたエントリは、復元したエントリの後ろに残ります
+     *
+     * @param entries 復元するエントリ（古い順）
+     */
+    public synchronized void restore(List<ChatEntry> entries) {
+        List<ChatEntry> current = getRecentEntries(maxSize);
+        reset();
+        int skip = Math.max(0, entries.size() + current.size() - maxSize);
+        for (int i = Math.min(skip, entries.size()); i < entries.size(); i++) {
+            append(entries.get(i));
+        }
+        for (ChatEntry entry : current) {
+            append(entry);
+        }
+    }
+
+    /**
+     * 履歴の変更を受け取るリスナーを設定
+     *
+     * @param listener リスナー（nullで解除）
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * エントリをリングバッファの末尾に書き込む（ロック内で呼び出す）
+     */
+    private void append(ChatEntry entry) {
+        long sequence = writeCount;
+        slots.set((int) (sequence % maxSize), new Slot(sequence, entry));
+        writeCount = sequence + 1;
+    }
 
-        // 履歴サイズが上限を超えた場合、古いメッセージを削除
-        while (history.size() > maxSize) {
-            history.removeFirst();
+    /**
+     * リングバッファを空にする（ロック内で呼び出す）
+     */
+    private void reset() {
+        clearedCount = writeCount;
+        for (int i = 0; i < maxSize; i++) {
+            slots.set(i, null);
         }
     }
 
@@ -70,29 +191,11 @@ public class ChatHistory {
      * @param count 取得するメッセージ数
      * @return ChatMessageのリスト
      */
-    public synchronized List<ChatMessage> getContextMessages(int count) {
+    public List<ChatMessage> getContextMessages(int count) {
         List<ChatMessage> messages = new ArrayList<>();
-
-        // 履歴の後ろからcount件取得
-        int startIndex = Math.max(0, history.size() - count);
-        List<ChatEntry> recentEntries = history.subList(startIndex, history.size());
-
-        for (ChatEntry entry : recentEntries) {
-            // プレイヤー名とメッセージを含むコンテキストを作成
-            String contextContent = String.format("[%s]: %s", entry.playerName, entry.originalMessage);
-
-            // 受信メッセージはassistant（翻訳済み）として、送信メッセージはuserとして追加
-            if (entry.isOutgoing) {
-                messages.add(new ChatMessage("user", contextContent));
-            } else {
-                // 翻訳済みメッセージも含める
-                messages.add(new ChatMessage("user", contextContent));
-                if (entry.translatedMessage != null && !entry.translatedMessage.equals(entry.originalMessage)) {
-                    messages.add(new ChatMessage("assistant", entry.translatedMessage));
-                }
-            }
+        for (ChatEntry entry : getRecentEntries(count)) {
+            messages.addAll(entry.getContextMessages());
         }
-
         return messages;
     }
 
@@ -101,15 +204,20 @@ public class ChatHistory {
      *
      * @return 全チャットエントリのリスト
      */
-    public synchronized List<ChatEntry> getAllHistory() {
-        return new ArrayList<>(history);
+    public List<ChatEntry> getAllHistory() {
+        return getRecentEntries(maxSize);
     }
 
     /**
      * 履歴をクリア
      */
     public synchronized void clear() {
-        history.clear();
+        reset();
+
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onCleared();
+        }
     }
 
     /**
@@ -117,19 +225,34 @@ public class ChatHistory {
      *
      * @return 現在の履歴サイズ
      */
-    public synchronized int size() {
-        return history.size();
+    public int size() {
+        long cleared = clearedCount;
+        return (int) Math.max(0, Math.min(maxSize, writeCount - cleared));
     }
 
     /**
-     * 最新のN件のエントリを取得
+     * 最新のN件のエントリを取得（古い順）
      *
      * @param count 取得する件数
      * @return ChatEntryのリスト
      */
-    public synchronized List<ChatEntry> getRecentEntries(int count) {
-        int startIndex = Math.max(0, history.size() - count);
-        return new ArrayList<>(history.subList(startIndex, history.size()));
+    public List<ChatEntry> getRecentEntries(int count) {
+        long cleared = clearedCount;
+        long end = writeCount;
+        long start = Math.max(cleared, end - Math.min(count, maxSize));
+        if (start >= end) {
+            return new ArrayList<>();
+        }
+
+        List<ChatEntry> result = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Slot slot = slots.get((int) (sequence % maxSize));
+            // 読み取り中に上書き・クリアされたスロットは飛ばす
+            if (slot != null && slot.sequence() == sequence) {
+                result.add(slot.entry());
+            }
+        }
+        return result;
     }
 
     /**
@@ -138,9 +261,9 @@ public class ChatHistory {
      * @param playerName プレイヤー名
      * @return ChatEntryのリスト
      */
-    public synchronized List<ChatEntry> getMessagesByPlayer(String playerName) {
+    public List<ChatEntry> getMessagesByPlayer(String playerName) {
         List<ChatEntry> result = new ArrayList<>();
-        for (ChatEntry entry : history) {
+        for (ChatEntry entry : getAllHistory()) {
             if (entry.playerName.equals(playerName)) {
                 result.add(entry);
             }
@@ -0,0 +1,205 @@
+package jp.chat_llm_translation.chat;
+
+import jp.chat_llm_translation.config.ModConfig;
+import jp.chat_llm_translation.llm.BackendPool;
+import jp.chat_llm_translation.llm.LLMClient.ChatMessage;
+import jp.chat_llm_translation.llm.TokenCounter;
+import jp.chat_llm_translation.rag.RAGStorage;
+import jp.chat_llm_translation.storage.ServerStorageManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 翻訳リクエストに添えるコンテキストを組み立てるクラス
+ * RAGストレージから似ている過去の翻訳を例（user/assistantの組）として取り出し、会話の履歴の前に置きます
+ *
+ * プロンプトの並びは「システムプロンプト → 翻訳例 → 会話の履歴 → 翻訳するメッセージ」です
+ * 翻訳例はスコア順ではなく正規化した原文の順に並べ、同じ例の組み合わせなら毎回同じ文字列になるようにして、
+ * llama-serverのプロンプトキャッシュが先頭から一致しやすいようにしています
+ *
+ * 翻訳例と履歴は件数ではなくトークン数で詰め込み、リクエストごとのプリフィル量がトークン予算を超えないようにします
+ * 予算はcontextTokenBudgetと、1スロットのコンテキスト（llamaContextSize / llamaParallel）の残りの小さい方です
+ */
+public class ContextBuilder {
+    /**
+     * 組み立てたコンテキスト
+     * バッチ翻訳ではメッセージごとの翻訳例をまとめ直すため、翻訳例と履歴を分けて保持します
+     *
+     * @param examples 翻訳例のuser/assistantメッセージ
+     * @param history 会話の履歴のメッセージ
+     */
+    public record Context(List<ChatMessage> examples, List<ChatMessage> history) {
+        /**
+         * 翻訳例と履歴をつなげたメッセージ
+         *
+         * @return コンテキストのメッセージ（空の場合はnull）
+         */
+        public List<ChatMessage> messages() {
+            if (examples.isEmpty() && history.isEmpty()) {
+                return null;
+            }
+            List<ChatMessage> messages = new ArrayList<>(examples.size() + history.size());
+            messages.addAll(examples);
+            messages.addAll(history);
+            return messages;
+        }
+    }
+
+    /**
+     * 翻訳例を選ぶときに多めに検索する倍率（方向が違うものを除くため）
+     */
+    private static final int SEARCH_OVERFETCH = 3;
+
+    /**
+     * チャットテンプレートで1メッセージごとに増えるトークン数の見積もり
+     */
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private final ModConfig config;
+    private final TokenCounter tokenCounter;
+
+    /**
+     * コンストラクタ
+     *
+     * @param backendPool トークン数を問い合わせるバックエンドのプール
+     */
+    public ContextBuilder(BackendPool backendPool) {
+        this.config = ModConfig.getInstance();
+        this.tokenCounter = new TokenCounter(backendPool);
+    }
+
+    /**
+     * 翻訳リクエストのコンテキストを組み立てる
+     *
+     * @param serverStorage 現在のサーバーストレージ
+     * @param message 翻訳するメッセージ
+     * @param isOutgoing 送信メッセージかどうか（送信メッセージは会話と誤解されないよう履歴を付けない）
+     * @param localPlayerName 自分のプレイヤー名（翻訳例の方向の判定に使用、不明な場合はnull）
+     * @return コンテキスト（翻訳例と履歴）
+     */
+    public Context build(ServerStorageManager.ServerStorage serverStorage, String message, boolean isOutgoing,
+                         String localPlayerName) {
+        int budget = getTokenBudget(message);
+        List<ChatMessage> examples = selectExamples(serverStorage.getRAGStorage(), message, isOutgoing,
+                localPlayerName, Math.min(budget, config.fewShotTokenBudget));
+        List<ChatMessage> history = isOutgoing
+                ? List.of()
+                : selectHistory(serverStorage.chatHistory, budget - countTokens(examples));
+
+        if (config.debugMode) {
+            int tokens = countTokens(examples) + countTokens(history);
+            System.out.println("[ChatLLM] Context: " + (examples.size() + history.size()) + " messages, " + tokens
+                    + "/" + budget + " tokens");
+        }
+        return new Context(examples, history);
+    }
+
+    /**
+     * コンテキスト（翻訳例と履歴）に使えるトークン数を計算
+     * 1スロットのコンテキストから、システムプロンプト・翻訳するメッセージ・応答の最大トークン数を引いた残りを上限とします
+     *
+     * @param message 翻訳するメッセージ
+     * @return トークン予算
+     */
+    int getTokenBudget(String message) {
+        int slotContext = config.llamaContextSize / Math.max(1, config.llamaParallel);
+        int available = slotContext - config.maxTokens
+                - tokenCounter.count(config.getFormattedSystemPrompt()) - tokenCounter.count(message)
+                - MESSAGE_OVERHEAD_TOKENS * 2;
+        int budget = config.contextTokenBudget > 0 ? Math.min(config.contextTokenBudget, available) : available;
+        return Math.max(0, budget);
+    }
+
+    /**
+     * 似ている過去の翻訳を翻訳例として選ぶ（トークン予算を超えない範囲）
+     * RAGのエントリには翻訳方向がないため、コンテキスト（発言者）が自分のエントリを送信、それ以外を受信として扱います
+     *
+     * @param ragStorage RAGストレージ（読み込み中の場合はnull）
+     * @param message 翻訳するメッセージ
+     * @param isOutgoing 送信メッセージかどうか
+     * @param localPlayerName 自分のプレイヤー名（不明な場合はnull）
+     * @param tokenBudget 翻訳例に使える最大トークン数
+     * @return 翻訳例のuser/assistantメッセージ
+     */
+    List<ChatMessage> selectExamples(RAGStorage ragStorage, String message, boolean isOutgoing, String localPlayerName,
+                                     int tokenBudget) {
+        if (ragStorage == null || config.fewShotExamples <= 0 || tokenBudget <= 0) {
+            return List.of();
+        }
+
+        List<RAGStorage.RAGEntry> examples = new ArrayList<>();
+        int tokens = 0;
+        for (RAGStorage.RAGEntry entry : ragStorage.search(message, config.fewShotExamples * SEARCH_OVERFETCH)) {
+            boolean outgoingEntry = localPlayerName != null && localPlayerName.equals(entry.context);
+            if (outgoingEntry != isOutgoing || entry.translatedText == null || entry.translatedText.equals(entry.originalText)) {
+                continue; // 逆方向の翻訳と、翻訳しなかったメッセージは例にしない
+            }
+
+            int cost = tokenCounter.count(entry.originalText) + tokenCounter.count(entry.translatedText) + MESSAGE_OVERHEAD_TOKENS * 2;
+            if (tokens + cost > tokenBudget) {
+                continue; // 長いエントリは飛ばし、短い例で予算を埋める
+            }
+            tokens += cost;
+            examples.add(entry);
+            if (examples.size() >= config.fewShotExamples) {
+                break;
+            }
+        }
+
+        // プロンプトキャッシュのため、スコアではなく原文の順に並べる
+        examples.sort(Comparator.comparing((RAGStorage.RAGEntry entry) -> TranslationCache.normalize(entry.originalText)));
+
+        List<ChatMessage> messages = new ArrayList<>(examples.size() * 2);
+        for (RAGStorage.RAGEntry entry : examples) {
+            messages.add(new ChatMessage("user", entry.originalText));
+            messages.add(new ChatMessage("assistant", entry.translatedText));
+        }
+        return messages;
+    }
+
+    /**
+     * 会話の履歴を新しい順にトークン予算まで選ぶ（古い順に並べて返す）
+     * 予算に収まらない長いメッセージ（スパムなど）は飛ばし、それより古い短いメッセージで予算を埋めます
+     *
+     * @param chatHistory チャット履歴
+     * @param tokenBudget 履歴に使える最大トークン数
+     * @return 履歴のメッセージ
+     */
+    List<ChatMessage> selectHistory(ChatHistory chatHistory, int tokenBudget) {
+        if (tokenBudget <= 0 || config.contextHistoryMaxEntries <= 0) {
+            return List.of();
+        }
+
+        List<ChatHistory.ChatEntry> entries = chatHistory.getRecentEntries(config.contextHistoryMaxEntries);
+        List<List<ChatMessage>> selected = new ArrayList<>();
+        int tokens = 0;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            List<ChatMessage> entryMessages = entries.get(i).getContextMessages();
+            int cost = countTokens(entryMessages);
+            if (tokens + cost > tokenBudget) {
+                continue;
+            }
+            tokens += cost;
+            selected.add(entryMessages);
+        }
+
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            messages.addAll(selected.get(i));
+        }
+        return messages;
+    }
+
+    /**
+     * メッセージのトークン数の合計（テンプレートの分を含む）
+     */
+    private int countTokens(List<ChatMessage> messages) {
+        int tokens = 0;
+        for (ChatMessage message : messages) {
+            tokens += tokenCounter.count(message.content) + MESSAGE_OVERHEAD_TOKENS;
+        }
+        return tokens;
+    }
+}
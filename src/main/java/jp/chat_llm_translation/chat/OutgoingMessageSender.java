@@ -0,0 +1,123 @@
+package jp.chat_llm_translation.chat;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.config.ModConfig;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayNetworkHandler;
+import net.minecraft.text.Text;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 送信メッセージを非同期に翻訳してから送信するクラス
+ * 元の送信をキャンセルし、翻訳完了後にクライアントスレッドで翻訳文を送り直します
+ * 翻訳の完了順に関係なく、入力した順番で送信されます
+ */
+public class OutgoingMessageSender {
+    private final ChatHandler chatHandler;
+    private final ModConfig config;
+
+    /**
+     * 直前に受け付けた送信の完了（送信順を保つためにチェーンする）
+     */
+    private CompletableFuture<Void> lastSend;
+
+    /**
+     * 翻訳文を送り直している最中かどうか（クライアントスレッドからのみ参照）
+     */
+    private boolean resending = false;
+
+    /**
+     * コンストラクタ
+     *
+     * @param chatHandler 翻訳に使用するハンドラ
+     */
+    public OutgoingMessageSender(ChatHandler chatHandler) {
+        this.chatHandler = chatHandler;
+        this.config = ModConfig.getInstance();
+        this.lastSend = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * メッセージを翻訳してから送信する（クライアントスレッドから呼び出す）
+     *
+     * @param networkHandler 送信に使用するネットワークハンドラ
+     * @param playerName プレイヤー名
+     * @param message 元のメッセージ
+     */
+    public synchronized void send(ClientPlayNetworkHandler networkHandler, String playerName, String message) {
+        MinecraftClient client = MinecraftClient.getInstance();
+
+        // 翻訳中の表示
+        if (client.player != null) {
+            client.player.sendMessage(Text.literal(config.outgoingLabelColor + "[送信翻訳中] " +
+                    config.outgoingOriginalTextColor + message), true);
+        }
+
+        // 翻訳はすぐに開始し、送信だけを直前のメッセージの後に並べる
+        CompletableFuture<String> translation = chatHandler.handleOutgoingMessage(playerName, message)
+                .orTimeout(config.outgoingTranslationTimeout, TimeUnit.MILLISECONDS);
+
+        lastSend = lastSend
+                .thenCompose(ignored -> translation.handle((translated, ex) -> ex == null ? translated : null))
+                .thenAcceptAsync(translated -> resend(networkHandler, message, translated), client)
+                .exceptionally(ex -> {
+                    Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to send translated message", ex);
+                    return null;
+                });
+    }
+
+    /**
+     * 翻訳結果を送信する（クライアントスレッドで実行）
+     *
+     * @param networkHandler 送信に使用するネットワークハンドラ
+     * @param message 元のメッセージ
+     * @param translated 翻訳結果（タイムアウト・失敗時はnull）
+     */
+    private void resend(ClientPlayNetworkHandler networkHandler, String message, String translated) {
+        MinecraftClient client = MinecraftClient.getInstance();
+
+        // 翻訳中に切断された場合は送信しない
+        if (client.getNetworkHandler() != networkHandler) {
+            return;
+        }
+
+        String toSend = message;
+        if (translated == null) {
+            // タイムアウト時は元のメッセージを送信
+            if (config.debugMode) {
+                Chat_llm_translation.LOGGER.warn("[ChatLLM] Translation timeout, sending original message: {}", message);
+            }
+            if (client.player != null) {
+                client.player.sendMessage(
+                        Text.literal("§c[ChatLLM] 翻訳タイムアウト - 原文を送信しました"),
+                        false
+                );
+            }
+        } else {
+            if (config.debugMode) {
+                Chat_llm_translation.LOGGER.info("[ChatLLM] Translated outgoing: {} -> {}", message, translated);
+            }
+            chatHandler.displayOutgoingTranslation(message, translated);
+            toSend = translated;
+        }
+
+        resending = true;
+        try {
+            networkHandler.sendChatMessage(toSend);
+        } finally {
+            resending = false;
+        }
+    }
+
+    /**
+     * 翻訳文を送り直している最中かどうか
+     * 送り直したメッセージを再度翻訳しないためにMixinから参照します
+     *
+     * @return 送り直し中の場合true
+     */
+    public boolean isResending() {
+        return resending;
+    }
+}
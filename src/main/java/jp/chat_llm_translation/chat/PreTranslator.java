@@ -0,0 +1,94 @@
+package jp.chat_llm_translation.chat;
+
+import jp.chat_llm_translation.config.ModConfig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * チャット入力欄の下書きを先読みして翻訳するクラス
+ * 入力が止まってからpreTranslateDelayMs後に低優先度で翻訳を開始し、
+ * 入力が変わったら古い先読みを取り消します
+ */
+public class PreTranslator {
+    private final ChatHandler chatHandler;
+    private final ModConfig config;
+    private final ScheduledExecutorService debounceExecutor;
+
+    // 現在の先読み状態（debounceExecutorとクライアントスレッドから参照）
+    private ScheduledFuture<?> pendingDraft;
+    private String currentDraft;
+    private CompletableFuture<String> currentTranslation;
+
+    /**
+     * コンストラクタ
+     *
+     * @param chatHandler 翻訳に使用するハンドラ
+     */
+    public PreTranslator(ChatHandler chatHandler) {
+        this.chatHandler = chatHandler;
+        this.config = ModConfig.getInstance();
+        this.debounceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-llm-translation-pretranslator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 入力欄の内容が変わった時の処理（クライアントスレッドから呼び出す）
+     *
+     * @param draft 入力中のテキスト
+     */
+    public synchronized void onDraftChanged(String draft) {
+        if (pendingDraft != null) {
+            pendingDraft.cancel(false);
+            pendingDraft = null;
+        }
+
+        if (!config.preTranslateWhileTyping) {
+            return;
+        }
+
+        // 送信時と同じく前後の空白を除き、連続する空白を1つにまとめる（キャッシュのキーを一致させるため）
+        String trimmed = draft == null ? "" : draft.trim().replaceAll("\\s+", " ");
+        if (trimmed.equals(currentDraft)) {
+            return;
+        }
+
+        // 入力が変わったので前回の先読みは不要
+        cancelCurrent();
+
+        if (trimmed.length() < config.preTranslateMinLength || trimmed.startsWith("/")) {
+            return;
+        }
+
+        pendingDraft = debounceExecutor.schedule(() -> startPrefetch(trimmed),
+                config.preTranslateDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 入力が止まった下書きの先読み翻訳を開始
+     *
+     * @param draft 入力中のテキスト
+     */
+    private synchronized void startPrefetch(String draft) {
+        pendingDraft = null;
+        currentDraft = draft;
+        currentTranslation = chatHandler.prefetchOutgoing(draft);
+    }
+
+    /**
+     * 実行中の先読みを取り消す
+     */
+    private void cancelCurrent() {
+        if (currentTranslation != null && !currentTranslation.isDone()) {
+            chatHandler.cancelPrefetch(currentDraft, currentTranslation);
+        }
+        currentDraft = null;
+        currentTranslation = null;
+    }
+}
@@ -0,0 +1,440 @@
+package jp.chat_llm_translation.chat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * メモリ上の翻訳キャッシュ（W-TinyLFU方式、メモリ量で上限を設定）
+ * キーはサーバー・翻訳方向・翻訳先言語・正規化したメッセージの組で、
+ * 別サーバーの翻訳や受信・送信で逆方向の翻訳が混ざらないようにしています
+ *
+ * 新しいエントリはまず小さなウィンドウ（LRU）に入り、あふれたものだけがメイン領域への入場を審査されます
+ * メイン領域は試用（probation）と保護（protected）の2段のLRUで、試用中に再度使われたエントリが保護に昇格します
+ * メイン領域があふれた場合は、入場候補と試用のLRU末尾のうち、最近の使用頻度（Count-Min Sketchによる推定）が
+ * 低い方を追い出します。一度しか出てこないスパムのようなメッセージが、よく使われる翻訳を押し出すことはありません
+ *
+ * すべての操作はO(1)で、インスタンスのロックで保護されます
+ */
+public class TranslationCache {
+    /**
+     * ウィンドウに割り当てるメモリの割合
+     */
+    private static final double WINDOW_RATIO = 0.01;
+
+    /**
+     * メイン領域のうち保護領域に割り当てるメモリの割合
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * エントリ1件あたりの固定のメモリ使用量の見積もり（ノード、キー、マップのエントリ、文字列のヘッダ）
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    /**
+     * キャッシュのキー
+     *
+     * @param server 正規化したサーバーアドレス
+     * @param outgoing 送信メッセージかどうか
+     * @param targetLanguage 翻訳先言語
+     * @param text 正規化したメッセージ
+     */
+    public record Key(String server, boolean outgoing, String targetLanguage, String text) {
+    }
+
+    /**
+     * エントリが属する領域
+     */
+    private enum Region {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    /**
+     * 領域内のLRUリストのノード
+     */
+    private static final class Node {
+        final Key key;
+        String value;
+        int weight;
+        Region region;
+        Node prev;
+        Node next;
+
+        Node(Key key, String value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 双方向リストによるLRU（headが最も古く、tailが最も新しい）
+     */
+    private static final class LruList {
+        Node head;
+        Node tail;
+        long weight;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail != null) {
+                tail.next = node;
+            } else {
+                head = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    private final Map<Key, Node> nodes = new HashMap<>();
+    private final LruList window = new LruList();
+    private final LruList probation = new LruList();
+    private final LruList protectedList = new LruList();
+    private final FrequencySketch sketch;
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maxBytes キャッシュ全体のメモリ使用量の上限（見積もり、バイト）
+     */
+    public TranslationCache(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, ENTRY_OVERHEAD_BYTES * 16L);
+        this.windowMaxBytes = Math.max((long) (this.maxBytes * WINDOW_RATIO), ENTRY_OVERHEAD_BYTES * 2L);
+        this.protectedMaxBytes = (long) ((this.maxBytes - windowMaxBytes) * PROTECTED_RATIO);
+        // 平均的なチャットメッセージ（原文と翻訳で約100文字）を基準に、想定エントリ数の分だけカウンタを用意
+        this.sketch = new FrequencySketch((int) Math.min(this.maxBytes / (ENTRY_OVERHEAD_BYTES + 200), 1 << 20));
+    }
+
+    /**
+     * キャッシュのキーを生成
+     * 大文字小文字と空白の違いは同一メッセージとして扱う
+     *
+     * @param server 正規化したサーバーアドレス
+     * @param outgoing 送信メッセージかどうか
+     * @param targetLanguage 翻訳先言語
+     * @param message メッセージ
+     * @return キャッシュのキー
+     */
+    public static Key key(String server, boolean outgoing, String targetLanguage, String message) {
+        return new Key(server, outgoing, targetLanguage, normalize(message));
+    }
+
+    /**
+     * メッセージを正規化（小文字化、前後の空白除去、連続する空白を1つに）
+     *
+     * @param message メッセージ
+     * @return 正規化したメッセージ
+     */
+    public static String normalize(String message) {
+        return message.toLowerCase().trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * 翻訳を取得（使用頻度とLRUの順序を更新）
+     *
+     * @param key キャッシュのキー
+     * @return 翻訳、存在しない場合はnull
+     */
+    public synchronized String get(Key key) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if (node == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * 翻訳が存在するかどうか（使用頻度・LRUの順序・統計は更新しない）
+     *
+     * @param key キャッシュのキー
+     * @return 存在する場合true
+     */
+    public synchronized boolean containsKey(Key key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * 翻訳を登録（既にある場合は置き換え）
+     *
+     * @param key キャッシュのキー
+     * @param value 翻訳
+     */
+    public synchronized void put(Key key, String value) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if (node != null) {
+            listOf(node.region).remove(node);
+            node.value = value;
+            node.weight = weigh(key, value);
+            listOf(node.region).addLast(node);
+            onAccess(node);
+            evict();
+            return;
+        }
+        insert(key, value);
+    }
+
+    /**
+     * 翻訳がない場合だけ登録（参加時のキャッシュ読み込み用）
+     *
+     * @param key キャッシュのキー
+     * @param value 翻訳
+     * @return 登録した場合true
+     */
+    public synchronized boolean putIfAbsent(Key key, String value) {
+        if (nodes.containsKey(key)) {
+            return false;
+        }
+        sketch.increment(key.hashCode());
+        insert(key, value);
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * 全てのエントリと統計を削除
+     */
+    public synchronized void clear() {
+        nodes.clear();
+        window.clear();
+        probation.clear();
+        protectedList.clear();
+        sketch.clear();
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+
+    /**
+     * エントリ数を取得
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * メモリ使用量の見積もりを取得（バイト）
+     */
+    public synchronized long getWeightedSize() {
+        return window.weight + probation.weight + protectedList.weight;
+    }
+
+    /**
+     * メモリ使用量の上限を取得（バイト）
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * ヒット率を取得
+     *
+     * @return ヒット率（0.0〜1.0、まだ参照がない場合は0.0）
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     * 新しいエントリをウィンドウに追加
+     */
+    private void insert(Key key, String value) {
+        Node node = new Node(key, value, weigh(key, value));
+        if (node.weight > maxBytes - windowMaxBytes) {
+            evictionCount++;
+            return; // 大きすぎるエントリはキャッシュしない
+        }
+        node.region = Region.WINDOW;
+        nodes.put(key, node);
+        window.addLast(node);
+        evict();
+    }
+
+    /**
+     * 参照されたエントリを領域に応じて移動
+     */
+    private void onAccess(Node node) {
+        switch (node.region) {
+            case WINDOW -> {
+                window.remove(node);
+                window.addLast(node);
+            }
+            case PROBATION -> {
+                // 試用中に再度使われたエントリは保護領域に昇格
+                probation.remove(node);
+                node.region = Region.PROTECTED;
+                protectedList.addLast(node);
+                // 保護領域があふれたら古いものを試用に戻す
+                while (protectedList.weight > protectedMaxBytes && protectedList.head != node) {
+                    Node demoted = protectedList.head;
+                    protectedList.remove(demoted);
+                    demoted.region = Region.PROBATION;
+                    probation.addLast(demoted);
+                }
+            }
+            case PROTECTED -> {
+                protectedList.remove(node);
+                protectedList.addLast(node);
+            }
+        }
+    }
+
+    /**
+     * 上限を超えた分を追い出す
+     * ウィンドウからあふれたエントリは試用領域の新しい側に入り、入場候補として試用のLRU末尾と使用頻度を比べます
+     */
+    private void evict() {
+        while (window.weight > windowMaxBytes && window.head != null) {
+            Node node = window.head;
+            window.remove(node);
+            node.region = Region.PROBATION;
+            probation.addLast(node);
+        }
+
+        while (getWeightedSize() > maxBytes) {
+            Node victim = probation.head != null ? probation.head : protectedList.head;
+            Node candidate = probation.tail;
+            if (victim == null) {
+                victim = window.head;
+            }
+            if (candidate != null && candidate != victim
+                    && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                // 入場候補の方が使われていなければ候補を捨てる
+                victim = candidate;
+            }
+            listOf(victim.region).remove(victim);
+            nodes.remove(victim.key);
+            evictionCount++;
+        }
+    }
+
+    /**
+     * 領域のLRUリストを取得
+     */
+    private LruList listOf(Region region) {
+        return switch (region) {
+            case WINDOW -> window;
+            case PROBATION -> probation;
+            case PROTECTED -> protectedList;
+        };
+    }
+
+    /**
+     * エントリのメモリ使用量を見積もる（文字列は1文字2バイト、サーバー名と言語は共有されるので数えない）
+     */
+    private static int weigh(Key key, String value) {
+        return ENTRY_OVERHEAD_BYTES + 2 * (key.text().length() + (value != null ? value.length() : 0));
+    }
+
+    /**
+     * 使用頻度を推定するCount-Min Sketch（4ビット相当のカウンタ、一定回数ごとに半減させて古い頻度を忘れる）
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0x8be9f9b1, 0xc2b2ae35, 0x27d4eb2f};
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+            this.table = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[index(hash, i)]);
+            }
+            return min;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        void clear() {
+            Arrays.fill(table, (byte) 0);
+            additions = 0;
+        }
+
+        /**
+         * 全てのカウンタを半減
+         */
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >>> 1);
+            }
+            additions /= 2;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
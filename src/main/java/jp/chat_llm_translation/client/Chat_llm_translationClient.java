@@ -183,7 +183,11 @@ public class Chat_llm_translationClient implements ClientModInitializer {
 
         String finalPlayerName = playerName;
         String finalChatMessage = chatMessage;
-        handler.handleIncomingMessage(finalPlayerName, finalChatMessage)
+        handler.handleIncomingMessage(finalPlayerName, finalChatMessage, partial -> {
+                    MinecraftClient.getInstance().execute(() -> {
+                        handler.displayPartialTranslation(finalChatMessage, partial);
+                    });
+                })
                 .thenAccept(translated -> {
                     MinecraftClient.getInstance().execute(() -> {
                         handler.displayTranslation(finalChatMessage, translated);
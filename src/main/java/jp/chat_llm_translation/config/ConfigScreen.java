@@ -247,6 +247,17 @@ public class ConfigScreen extends Screen {
         int statusY = this.height - 55;
         String statusIcon = serverRunning ? (serverHealthy ? "§a●" : "§e●") : "§c●";
         String statusLabel = serverRunning ? (serverHealthy ? "Running" : "Starting...") : "Stopped";
+        if (serverRunning && serverManager != null) {
+            // 再起動中・一部のワーカーだけ動いている場合はスーパーバイザーの状態を表示
+            LlamaServerManager.State state = serverManager.getState();
+            if (state == LlamaServerManager.State.RESTARTING) {
+                statusIcon = "§e●";
+                statusLabel = "Restarting...";
+            } else if (state == LlamaServerManager.State.DEGRADED) {
+                statusIcon = "§e●";
+                statusLabel = "Degraded";
+            }
+        }
         context.drawCenteredTextWithShadow(this.textRenderer, Text.literal("Status: " + statusIcon + " §f" + statusLabel), centerX, statusY, 0xFFFFFF);
 
         if (serverRunning) {
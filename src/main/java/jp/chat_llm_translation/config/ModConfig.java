@@ -30,6 +30,18 @@ public class ModConfig {
      */
     public String llmServerUrl = "http://localhost:8080";
 
+    /**
+     * 翻訳リクエストを振り分けるLLMサーバーのURL（カンマ区切り、空の場合はllmServerUrlのみ）
+     * 例: "http://localhost:8080,http://localhost:8081"
+     * 実行中のリクエストが最も少ないサーバーに送り、接続できないサーバーはしばらく外します
+     */
+    public String llmBackendUrls = "";
+
+    /**
+     * LLMサーバー1つあたりの同時リクエスト数（0の場合はllamaParallel）
+     */
+    public int backendMaxConcurrent = 0;
+
     /**
      * オンラインAPI使用フラグ
      * trueの場合、onlineApiUrlとonlineApiKeyを使用
@@ -108,6 +120,17 @@ public class ModConfig {
      */
     public int chatHistorySize = 50;
 
+    /**
+     * チャット履歴をサーバーごとにファイルへ保存し、次に参加したときに復元するかどうか
+     * 再接続直後の翻訳でも会話のコンテキストを使えます
+     */
+    public boolean persistChatHistory = true;
+
+    /**
+     * 保存するチャット履歴のファイルの上限（KB、サーバーごと）
+     */
+    public int chatHistoryFileMaxKb = 256;
+
     /**
      * RAG機能の有効/無効
      */
@@ -118,6 +141,83 @@ public class ModConfig {
      */
     public int ragMaxEntries = 1000;
 
+    /**
+     * RAGストレージの保存形式
+     * "json": rag.json（人が読める形式）、"binary": rag-N.bin（起動時に全件を解析せず、参照したエントリだけを読み込む）
+     * 形式を変更すると次回の読み込み時に自動で変換されます
+     */
+    public String ragStorageFormat = "json";
+
+    /**
+     * 意味検索（埋め込みによる類似メッセージの再利用）の有効/無効
+     * 有効にすると "thx!!" と "thanks!" のような言い換えをLLMで生成せずにRAGストレージから返します
+     */
+    public boolean semanticMatchEnabled = false;
+
+    /**
+     * 意味検索で一致とみなす最小類似度（コサイン類似度、0.0〜1.0）
+     */
+    public double semanticMatchThreshold = 0.92;
+
+    /**
+     * 埋め込みの計算方法
+     * "llama": embeddingServerUrlのllama-serverの/embeddingを使用、"hashing": 文字n-gramによる簡易埋め込み（サーバー不要）
+     * "llama"でembeddingServerUrlが未設定の場合は"hashing"を使用します
+     */
+    public String embeddingProvider = "llama";
+
+    /**
+     * 埋め込みを計算するサーバーのURL（--embeddings付きで起動した翻訳用とは別のllama-server）
+     * --embeddings付きのllama-serverはチャット補完を受け付けないため、翻訳用のサーバーとは共有できません
+     */
+    public String embeddingServerUrl = "";
+
+    /**
+     * RAGストレージの類似度計算に使用するトークナイザ
+     * "ngram": 日本語・中国語・韓国語は文字2-gram/3-gram、それ以外は単語、"word": 空白区切りの単語のみ
+     * 変更はサーバーに参加し直してRAGストレージを読み込み直したときに反映されます
+     */
+    public String ragTokenizer = "ngram";
+
+    /**
+     * あいまい一致（表記ゆれ程度の違いのメッセージの翻訳を再利用）の有効/無効
+     */
+    public boolean fuzzyMatchEnabled = false;
+
+    /**
+     * あいまい一致とみなす最小類似度（トークンのJaccard係数、0.0〜1.0）
+     */
+    public double fuzzyMatchThreshold = 0.8;
+
+    /**
+     * 翻訳リクエストに添える過去の翻訳例の最大数（0で無効）
+     * RAGストレージから似ているメッセージの翻訳を選び、user/assistantの組としてプロンプトに入れます
+     */
+    public int fewShotExamples = 3;
+
+    /**
+     * 翻訳例に使う最大トークン数（contextTokenBudgetの内数）
+     */
+    public int fewShotTokenBudget = 160;
+
+    /**
+     * 翻訳リクエストのコンテキスト（翻訳例と会話の履歴）に使う最大トークン数（0で1スロットの残りをすべて使用）
+     * どちらの場合も、1スロットのコンテキスト（llamaContextSize / llamaParallel）から
+     * システムプロンプト・翻訳するメッセージ・maxTokensを引いた残りを超えません
+     */
+    public int contextTokenBudget = 384;
+
+    /**
+     * コンテキストに入れる会話の履歴の最大件数（トークン予算の範囲で新しいものから入れる）
+     */
+    public int contextHistoryMaxEntries = 8;
+
+    /**
+     * llama-serverの/tokenizeでトークン数を数えるかどうか
+     * falseの場合や/tokenizeが使えないサーバーでは、文字数からの見積もりを使います
+     */
+    public boolean useServerTokenizer = true;
+
     /**
      * LLMリクエストのタイムアウト（ミリ秒）
      */
@@ -129,6 +229,29 @@ public class ModConfig {
      */
     public int outgoingTranslationTimeout = 5000;
 
+    /**
+     * 送信メッセージを非同期に翻訳して送信するかどうか
+     * trueの場合、翻訳を待つ間ゲームを止めず、翻訳完了後に翻訳文を送信します
+     * falseの場合、最大outgoingTranslationTimeoutまでゲームを止めて翻訳を待ちます
+     */
+    public boolean asyncOutgoingSend = true;
+
+    /**
+     * チャット入力中に下書きを先読みして翻訳するかどうか
+     * 送信時には翻訳がキャッシュ済みになっていることが多く、待ち時間なしで送信できます
+     */
+    public boolean preTranslateWhileTyping = true;
+
+    /**
+     * 入力が止まってから先読み翻訳を開始するまでの時間（ミリ秒）
+     */
+    public int preTranslateDelayMs = 400;
+
+    /**
+     * 先読み翻訳を行う下書きの最小文字数
+     */
+    public int preTranslateMinLength = 2;
+
     /**
      * 最大トークン数
      */
@@ -145,6 +268,55 @@ public class ModConfig {
      */
     public double topP = 0.9;
 
+    /**
+     * ストリーミング翻訳の有効/無効
+     * trueの場合、受信メッセージの翻訳途中の結果をアクションバーに逐次表示し、
+     * 完了時に翻訳結果をチャットに表示します
+     */
+    public boolean streamingTranslation = true;
+
+    /**
+     * ストリーミング翻訳の途中経過を表示する最小間隔（ミリ秒）
+     * 描画の更新が多くなりすぎないように間引きます
+     */
+    public int streamingUpdateInterval = 100;
+
+    /**
+     * 受信メッセージのバッチ翻訳の有効/無効
+     * trueの場合、短時間に届いた受信メッセージをまとめて1回のリクエストで翻訳します
+     */
+    public boolean batchingEnabled = true;
+
+    /**
+     * バッチに受信メッセージを集める待機時間（ミリ秒）
+     */
+    public int batchWindowMs = 150;
+
+    /**
+     * 1回のバッチ翻訳に含める最大メッセージ数
+     * この数に達した場合は待機時間を待たずに送信します
+     */
+    public int batchMaxSize = 8;
+
+    /**
+     * 受信メッセージ翻訳の期限（ミリ秒）
+     * 受信からこの時間を過ぎても翻訳が始まっていない場合はLLMに送らず破棄します
+     * 0の場合は期限なし
+     */
+    public int incomingTranslationDeadline = 15000;
+
+    /**
+     * 翻訳待ちにできる受信メッセージの最大数
+     * 0の場合は無制限
+     */
+    public int maxQueuedIncoming = 64;
+
+    /**
+     * 受信メッセージの翻訳待ちが上限に達した場合の破棄ポリシー
+     * "drop-oldest": 最も古い翻訳待ちを破棄, "drop-newest": 新しく届いたメッセージを破棄
+     */
+    public String incomingQueuePolicy = "drop-oldest";
+
     /**
      * デバッグモード
      * trueの場合、詳細なログを出力
@@ -152,9 +324,15 @@ public class ModConfig {
     public boolean debugMode = false;
 
     /**
-     * サーバー参加時に全キャッシュを読み込むかどうか
-     * trueの場合、そのサーバーの過去の全チャット履歴をLLMコンテキストに読み込む
-     * 注意: 大量のキャッシュがある場合、初回翻訳が重くなる可能性があります
+     * メモリ上の翻訳キャッシュの上限（KB、見積もり）
+     * 上限を超えると、最近あまり使われていない翻訳から追い出します
+     */
+    public int translationCacheMaxKb = 4096;
+
+    /**
+     * サーバー参加時に翻訳キャッシュを温めるかどうか
+     * trueの場合、そのサーバーのRAGストレージから使用回数・最終使用時刻の上位エントリを
+     * バックグラウンドでメモリ上の翻訳キャッシュに読み込みます
      */
     public boolean loadFullCacheOnJoin = false;
 
@@ -164,6 +342,13 @@ public class ModConfig {
      */
     public int maxCacheLoadOnJoin = 500;
 
+    /**
+     * サーバー参加時にllama-serverのプロンプトキャッシュを事前に埋めるかどうか
+     * loadFullCacheOnJoinがtrueの場合に適用
+     * 受信・送信の翻訳先言語ごとに1トークンだけの翻訳リクエストを送り、システムプロンプトの処理を済ませておきます
+     */
+    public boolean warmUpPromptCache = false;
+
     // ============================================================
     // llama-server自動起動設定
     // ============================================================
@@ -209,6 +394,31 @@ public class ModConfig {
      */
     public int llamaParallel = 4;
 
+    /**
+     * 起動するllama-serverのワーカープロセス数
+     * 2以上の場合、llamaServerPortから1つずつずらしたポートで起動し、llmBackendUrlsが空なら翻訳リクエストを振り分けます
+     * llmServerUrl（埋め込みの計算にも使用）は最初のワーカーを指すようにしてください
+     */
+    public int llamaWorkers = 1;
+
+    /**
+     * ワーカー1つあたりのスレッド数（0の場合はllamaThreadsをワーカー数で分ける）
+     */
+    public int llamaWorkerThreads = 0;
+
+    /**
+     * ワーカーをCPUに固定する方法（Linuxのみ）
+     * "none": 固定しない、"taskset": CPU番号で固定、"numactl": NUMAノード（CPUとメモリ）で固定
+     */
+    public String llamaCpuPinning = "none";
+
+    /**
+     * ワーカーごとのCPUセット（";"区切り、空の場合は自動）
+     * taskset: CPU番号のリスト（例: "0-7;8-15"）、numactl: NUMAノード番号（例: "0;1"）
+     * 自動の場合、tasksetはワーカー番号 × スレッド数から連続したCPU、numactlはワーカー番号と同じノードを使用します
+     */
+    public String llamaCpuSets = "";
+
     /**
      * llama-serverのメインGPU ID
      */
@@ -236,6 +446,35 @@ public class ModConfig {
      */
     public boolean llamaMetrics = false;
 
+    /**
+     * llama-serverのモデル読み込みを待つ最大時間（ミリ秒）
+     * 起動後は/healthを間隔を延ばしながら問い合わせ、この時間内に準備ができなければ起動失敗として停止します
+     */
+    public int llamaReadyTimeoutMs = 300000;
+
+    /**
+     * llama-serverの準備ができるまで翻訳リクエストを待たせる最大時間（ミリ秒）
+     * 起動直後に届いたメッセージは失敗させずに待たせ、準備ができてから翻訳します
+     */
+    public int serverReadyWaitMs = 60000;
+
+    /**
+     * 異常終了したllama-serverを自動的に起動し直すかどうか
+     * 起動し直すまでの間隔は1秒から倍に延ばし（最大60秒）、その間の翻訳リクエストは復帰後に送られます
+     */
+    public boolean llamaAutoRestart = true;
+
+    /**
+     * クラッシュループとみなすまでの再起動回数
+     * llamaCrashLoopWindowMsの間にこの回数を超えて異常終了したワーカーは、起動し直すのをあきらめます
+     */
+    public int llamaMaxRestarts = 5;
+
+    /**
+     * 異常終了の回数を数える時間の範囲（ミリ秒）
+     */
+    public int llamaCrashLoopWindowMs = 600000;
+
     // ============================================================
     // 翻訳メッセージの色設定
     // ============================================================
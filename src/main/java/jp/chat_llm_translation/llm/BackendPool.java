@@ -0,0 +1,352 @@
+package jp.chat_llm_translation.llm;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.config.ModConfig;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 複数のllama-server（バックエンド）にリクエストを振り分けるプール
+ * 実行中のリクエストが最も少ないバックエンドを選び（least-outstanding）、バックエンドごとに同時実行数を制限します
+ *
+ * 接続できない・5xxを返したバックエンドは一定時間候補から外し、失敗が続くほど外す時間を延ばします
+ * 時間が過ぎたら通常のリクエストをそのまま送って回復を確認します
+ * すべてのバックエンドが外れている場合は、最も早く復帰予定のものに送ります（リクエストを止めないため）
+ */
+public class BackendPool {
+    /**
+     * 失敗後に候補から外す時間の初期値と上限（ミリ秒）
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /**
+     * 空きを待つ間に復帰時刻を確認する間隔（ミリ秒）
+     */
+    private static final long WAIT_RECHECK_MILLIS = 500;
+
+    /**
+     * バックエンド（1つのllama-server）
+     * 状態はプールのロック内で更新します
+     */
+    public static final class Backend {
+        public final String url;
+        public final int maxConcurrent;
+
+        private int outstanding;
+        private int consecutiveFailures;
+        private long retryAt;
+        private long completedCount;
+        private long failedCount;
+
+        Backend(String url, int maxConcurrent) {
+            this.url = url;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        private boolean isAvailable(long now) {
+            return consecutiveFailures == 0 || now >= retryAt;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+    private volatile List<Backend> backends;
+    private int nextIndex;
+
+    /**
+     * コンストラクタ
+     *
+     * @param urls バックエンドのURL（1つ以上）
+     * @param maxConcurrent バックエンドごとの同時実行数
+     */
+    public BackendPool(List<String> urls, int maxConcurrent) {
+        this.backends = createBackends(urls, maxConcurrent);
+    }
+
+    /**
+     * 設定からバックエンドのURLを取得
+     * llmBackendUrlsが空の場合、llama-serverのワーカーを複数自動起動する設定ならワーカーのURL、それ以外はllmServerUrlのみ
+     *
+     * @param config 設定
+     * @return バックエンドのURL
+     */
+    public static List<String> configuredUrls(ModConfig config) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (config.llmBackendUrls != null) {
+            for (String url : config.llmBackendUrls.split(",")) {
+                if (!url.isBlank()) {
+                    urls.add(trimSlash(url.trim()));
+                }
+            }
+        }
+        if (urls.isEmpty() && usesLlamaWorkers(config)) {
+            urls.addAll(LlamaServerManager.workerEndpoints(config));
+        }
+        if (urls.isEmpty()) {
+            urls.add(trimSlash(config.llmServerUrl));
+        }
+        return new ArrayList<>(urls);
+    }
+
+    /**
+     * 自動起動したllama-serverのワーカーに振り分ける設定かどうか
+     *
+     * @param config 設定
+     * @return llmBackendUrlsが空で、ワーカーを複数自動起動する場合true
+     */
+    public static boolean usesLlamaWorkers(ModConfig config) {
+        return (config.llmBackendUrls == null || config.llmBackendUrls.isBlank())
+                && config.autoStartLlamaServer && config.llamaWorkers > 1;
+    }
+
+    /**
+     * バックエンドごとの同時実行数の設定値（0以下の場合はllamaParallel）
+     *
+     * @param config 設定
+     * @return 同時実行数
+     */
+    public static int configuredConcurrency(ModConfig config) {
+        return Math.max(1, config.backendMaxConcurrent > 0 ? config.backendMaxConcurrent : config.llamaParallel);
+    }
+
+    /**
+     * バックエンドを入れ替える（llama-serverのワーカーを起動し直した場合など）
+     * 同じURLのバックエンドは実行中の数と状態を引き継ぎます
+     *
+     * @param urls バックエンドのURL（1つ以上）
+     * @param maxConcurrent バックエンドごとの同時実行数
+     */
+    public void setBackends(List<String> urls, int maxConcurrent) {
+        lock.lock();
+        try {
+            List<Backend> replaced = createBackends(urls, maxConcurrent);
+            for (int i = 0; i < replaced.size(); i++) {
+                Backend created = replaced.get(i);
+                for (Backend existing : backends) {
+                    if (existing.url.equals(created.url) && existing.maxConcurrent == maxConcurrent) {
+                        replaced.set(i, existing);
+                    }
+                }
+            }
+            backends = replaced;
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Chat_llm_translation.LOGGER.info("[ChatLLM] LLM backends: {}", urls);
+    }
+
+    /**
+     * リクエストを送るバックエンドを選ぶ（すべて同時実行数の上限に達している場合は空くまで待機）
+     * 使い終わったら必ずreleaseを呼び出してください
+     *
+     * @return バックエンド
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    public Backend acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Backend backend = select(System.currentTimeMillis());
+                if (backend != null) {
+                    backend.outstanding++;
+                    return backend;
+                }
+                slotAvailable.await(WAIT_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 同時実行数の枠を使わない軽いリクエスト（/tokenizeなど）の送り先を選ぶ（待機しない）
+     * 停止中でないバックエンドのうち実行中のリクエストが最も少ないもの、すべて停止中なら最も早く復帰予定のものを返します
+     * releaseを呼び出す必要はありません
+     *
+     * @return バックエンド
+     */
+    public Backend peek() {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Backend best = null;
+            Backend fallback = null;
+            for (Backend backend : backends) {
+                if (backend.isAvailable(now)) {
+                    if (best == null || backend.outstanding < best.outstanding) {
+                        best = backend;
+                    }
+                } else if (fallback == null || backend.retryAt < fallback.retryAt) {
+                    fallback = backend;
+                }
+            }
+            return best != null ? best : fallback;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 空きのあるバックエンドから、実行中のリクエストが最も少ないものを選ぶ（ロック内で呼び出す）
+     * 同数の場合は前回の次から順に選び、負荷を均等にします
+     */
+    private Backend select(long now) {
+        List<Backend> current = backends;
+        Backend best = null;
+        Backend fallback = null;
+        boolean anyAvailable = false;
+        for (int i = 0; i < current.size(); i++) {
+            Backend backend = current.get((nextIndex + i) % current.size());
+            boolean available = backend.isAvailable(now);
+            anyAvailable |= available;
+            if (backend.outstanding >= backend.maxConcurrent) {
+                continue;
+            }
+            if (available && (best == null || backend.outstanding < best.outstanding)) {
+                best = backend;
+            }
+            if (!available && (fallback == null || backend.retryAt < fallback.retryAt)) {
+                fallback = backend;
+            }
+        }
+
+        // すべて停止中なら、最も早く復帰予定のものに送る
+        Backend selected = best != null ? best : (anyAvailable ? null : fallback);
+        if (selected != null) {
+            nextIndex = (current.indexOf(selected) + 1) % current.size();
+        }
+        return selected;
+    }
+
+    /**
+     * バックエンドの使用を終える
+     *
+     * @param backend acquireで選んだバックエンド
+     */
+    public void release(Backend backend) {
+        lock.lock();
+        try {
+            backend.outstanding--;
+            slotAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * リクエストの成功を記録（停止中だったバックエンドは復帰）
+     *
+     * @param backend バックエンド
+     */
+    public void recordSuccess(Backend backend) {
+        boolean recovered;
+        lock.lock();
+        try {
+            recovered = backend.consecutiveFailures > 0;
+            backend.consecutiveFailures = 0;
+            backend.completedCount++;
+            if (recovered) {
+                slotAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (recovered) {
+            Chat_llm_translation.LOGGER.info("[ChatLLM] LLM backend recovered: {}", backend.url);
+        }
+    }
+
+    /**
+     * リクエストの失敗（接続できない、5xx）を記録し、しばらく候補から外す
+     *
+     * @param backend バックエンド
+     */
+    public void recordFailure(Backend backend) {
+        long backoff;
+        lock.lock();
+        try {
+            backend.failedCount++;
+            backend.consecutiveFailures++;
+            backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(backend.consecutiveFailures - 1, 16));
+            backend.retryAt = System.currentTimeMillis() + backoff;
+        } finally {
+            lock.unlock();
+        }
+        Chat_llm_translation.LOGGER.warn("[ChatLLM] LLM backend failed, retrying in {} ms: {}", backoff, backend.url);
+    }
+
+    /**
+     * バックエンドの一覧を取得
+     *
+     * @return バックエンド
+     */
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * すべてのバックエンドの同時実行数の合計を取得
+     *
+     * @return 同時実行数の合計
+     */
+    public int getTotalConcurrency() {
+        int total = 0;
+        for (Backend backend : backends) {
+            total += backend.maxConcurrent;
+        }
+        return total;
+    }
+
+    /**
+     * バックエンドごとの状況を取得（統計表示用）
+     *
+     * @return 「URL 実行中/上限 完了数 状態」の一覧
+     */
+    public String getStatus() {
+        long now = System.currentTimeMillis();
+        StringBuilder status = new StringBuilder();
+        lock.lock();
+        try {
+            for (Backend backend : backends) {
+                if (!status.isEmpty()) {
+                    status.append(", ");
+                }
+                status.append(backend.url.replaceFirst("^https?://", ""))
+                        .append(' ').append(backend.outstanding).append('/').append(backend.maxConcurrent)
+                        .append(' ').append(backend.completedCount).append(" ok");
+                if (backend.failedCount > 0) {
+                    status.append(' ').append(backend.failedCount).append(" failed");
+                }
+                if (!backend.isAvailable(now)) {
+                    status.append(" down");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return status.toString();
+    }
+
+    private static List<Backend> createBackends(List<String> urls, int maxConcurrent) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one LLM backend is required");
+        }
+        List<Backend> created = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            created.add(new Backend(trimSlash(url), Math.max(1, maxConcurrent)));
+        }
+        return created;
+    }
+
+    private static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
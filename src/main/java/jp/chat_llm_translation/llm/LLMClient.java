@@ -4,6 +4,7 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
 import jp.chat_llm_translation.config.ModConfig;
+import jp.chat_llm_translation.llm.TranslationScheduler.Priority;
 
 import java.io.IOException;
 import java.net.URI;
@@ -13,16 +14,37 @@ import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * llama.cpp サーバーと通信してLLM推論を実行するクライアント
  * OpenAI互換APIを使用
+ * 複数のサーバーを設定した場合は、BackendPoolで実行中のリクエストが最も少ないサーバーに振り分けます
  */
 public class LLMClient {
     private static final Gson GSON = new Gson();
+    private static final Pattern BATCH_LINE_PATTERN = Pattern.compile("^\\s*\\[?(\\d+)[\\].):]\\s*(.*)$");
+    private static final String BATCH_INSTRUCTION = """
+
+            The input is a numbered list of separate chat messages.
+            Translate each message independently and keep its number.
+            Output exactly one line per message in the form "N. translation", in the same order.
+            """;
     private final HttpClient httpClient;
     private final ModConfig config;
+    private final TranslationScheduler scheduler;
+    private final BackendPool backendPool;
+    private volatile Supplier<CompletableFuture<Void>> serverReadySupplier;
 
     /**
      * コンストラクタ
@@ -32,6 +54,9 @@ public class LLMClient {
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofMillis(config.requestTimeout))
                 .build();
+        this.backendPool = new BackendPool(BackendPool.configuredUrls(config), BackendPool.configuredConcurrency(config));
+        // すべてのバックエンドのスロットを埋められるだけのワーカーを用意する
+        this.scheduler = new TranslationScheduler(backendPool.getTotalConcurrency());
     }
 
     /**
@@ -77,7 +102,22 @@ public class LLMClient {
      * @return 翻訳されたテキストのCompletableFuture
      */
     public CompletableFuture<String> translateAsync(String text, List<ChatMessage> contextMessages, String targetLanguage) {
-        return CompletableFuture.supplyAsync(() -> {
+        return translateAsync(text, contextMessages, targetLanguage, Priority.INCOMING, 0);
+    }
+
+    /**
+     * llama.cppサーバーに翻訳リクエストを送信（非同期、優先度と期限を指定可能）
+     *
+     * @param text 翻訳するテキスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @param priority スケジューラ上の優先度
+     * @param deadline 期限（エポックミリ秒、0は期限なし）。過ぎた場合は送信せずCancellationExceptionで完了
+     * @return 翻訳されたテキストのCompletableFuture
+     */
+    public CompletableFuture<String> translateAsync(String text, List<ChatMessage> contextMessages, String targetLanguage,
+                                                    Priority priority, long deadline) {
+        return scheduler.submit(priority, deadline, () -> {
             try {
                 return translate(text, contextMessages, targetLanguage);
             } catch (Exception e) {
@@ -115,6 +155,325 @@ public class LLMClient {
      * @throws InterruptedException スレッド中断
      */
     public String translate(String text, List<ChatMessage> contextMessages, String targetLanguage) throws IOException, InterruptedException {
+        JsonObject requestBody = buildRequestBody(text, contextMessages, targetLanguage, false);
+
+        if (config.debugMode) {
+            System.out.println("[ChatLLM] Request: " + GSON.toJson(requestBody));
+        }
+
+        // HTTPリクエストを送信
+        HttpResponse<String> response = sendCompletion(requestBody);
+
+        // レスポンスをパース
+        if (response.statusCode() == 200) {
+            JsonObject responseJson = GSON.fromJson(response.body(), JsonObject.class);
+
+            if (config.debugMode) {
+                System.out.println("[ChatLLM] Response: " + response.body());
+            }
+
+            // OpenAI互換レスポンスから翻訳テキストを抽出
+            if (responseJson.has("choices") && responseJson.getAsJsonArray("choices").size() > 0) {
+                JsonObject choice = responseJson.getAsJsonArray("choices").get(0).getAsJsonObject();
+                if (choice.has("message")) {
+                    JsonObject message = choice.getAsJsonObject("message");
+                    if (message.has("content")) {
+                        return message.get("content").getAsString().trim();
+                    }
+                }
+            }
+
+            throw new IOException("Invalid response format from LLM server");
+        } else {
+            throw new IOException("LLM server returned error: " + response.statusCode() + " - " + response.body());
+        }
+    }
+
+    /**
+     * llama.cppサーバーにストリーミング翻訳リクエストを送信（非同期）
+     * トークンが届くたびに、それまでの翻訳テキスト全体がonPartialに渡されます
+     *
+     * @param text 翻訳するテキスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @param onPartial 部分的な翻訳結果を受け取るコールバック（呼び出しスレッドはHTTPワーカー）
+     * @return 最終的な翻訳テキストのCompletableFuture
+     */
+    public CompletableFuture<String> translateStreamAsync(String text, List<ChatMessage> contextMessages, String targetLanguage,
+                                                          Consumer<String> onPartial) {
+        return translateStreamAsync(text, contextMessages, targetLanguage, onPartial, Priority.INCOMING, 0);
+    }
+
+    /**
+     * llama.cppサーバーにストリーミング翻訳リクエストを送信（非同期、優先度指定可能）
+     *
+     * @param text 翻訳するテキスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @param onPartial 部分的な翻訳結果を受け取るコールバック（呼び出しスレッドはHTTPワーカー）
+     * @param priority スケジューラ上の優先度
+     * @param deadline 期限（エポックミリ秒、0は期限なし）。過ぎた場合は送信せずCancellationExceptionで完了
+     * @return 最終的な翻訳テキストのCompletableFuture
+     */
+    public CompletableFuture<String> translateStreamAsync(String text, List<ChatMessage> contextMessages, String targetLanguage,
+                                                          Consumer<String> onPartial, Priority priority, long deadline) {
+        return scheduler.submit(priority, deadline, () -> {
+            try {
+                return translateStream(text, contextMessages, targetLanguage, onPartial);
+            } catch (Exception e) {
+                if (config.debugMode) {
+                    System.err.println("[ChatLLM] Streaming translation failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                // 翻訳失敗時は元のテキストを返す
+                return text;
+            }
+        });
+    }
+
+    /**
+     * llama.cppサーバーにストリーミング翻訳リクエストを送信（同期）
+     * OpenAI互換のSSE（data: {...}）を1行ずつ読み取り、差分を連結します
+     *
+     * @param text 翻訳するテキスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @param onPartial 部分的な翻訳結果を受け取るコールバック（nullの場合は通知しない）
+     * @return 翻訳されたテキスト
+     * @throws IOException 通信エラー
+     * @throws InterruptedException スレッド中断
+     */
+    public String translateStream(String text, List<ChatMessage> contextMessages, String targetLanguage,
+                                  Consumer<String> onPartial) throws IOException, InterruptedException {
+        JsonObject requestBody = buildRequestBody(text, contextMessages, targetLanguage, true);
+
+        if (config.debugMode) {
+            System.out.println("[ChatLLM] Streaming request: " + GSON.toJson(requestBody));
+        }
+
+        // 応答を読み終えるまでバックエンドを使用中として扱う
+        BackendPool.Backend backend = backendPool.acquire();
+        try {
+            return readStream(backend, requestBody, onPartial);
+        } finally {
+            backendPool.release(backend);
+        }
+    }
+
+    /**
+     * ストリーミング翻訳リクエストを送信し、SSEを読み取る
+     *
+     * @param backend 送信先のバックエンド
+     * @param requestBody リクエストボディ
+     * @param onPartial 部分的な翻訳結果を受け取るコールバック（nullの場合は通知しない）
+     * @return 翻訳されたテキスト
+     */
+    private String readStream(BackendPool.Backend backend, JsonObject requestBody, Consumer<String> onPartial)
+            throws IOException, InterruptedException {
+        HttpResponse<Stream<String>> response = send(backend, requestBody, HttpResponse.BodyHandlers.ofLines());
+
+        if (response.statusCode() != 200) {
+            String errorBody;
+            try (Stream<String> lines = response.body()) {
+                errorBody = String.join("\n", lines.toList());
+            }
+            throw new IOException("LLM server returned error: " + response.statusCode() + " - " + errorBody);
+        }
+
+        StringBuilder translated = new StringBuilder();
+        boolean received = false;
+
+        try (Stream<String> lines = response.body()) {
+            var iterator = lines.iterator();
+            while (iterator.hasNext()) {
+                String line = iterator.next();
+
+                // SSEのデータ行以外（空行、コメント、event:行など）は無視
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+
+                String data = line.substring("data:".length()).trim();
+                if (data.equals("[DONE]")) {
+                    break;
+                }
+
+                String delta = extractStreamDelta(data);
+                received = true;
+                if (delta == null || delta.isEmpty()) {
+                    continue;
+                }
+
+                translated.append(delta);
+                if (onPartial != null) {
+                    String partial = translated.toString().trim();
+                    if (!partial.isEmpty()) {
+                        onPartial.accept(partial);
+                    }
+                }
+            }
+        }
+
+        if (!received) {
+            throw new IOException("Invalid streaming response from LLM server");
+        }
+
+        if (config.debugMode) {
+            System.out.println("[ChatLLM] Streaming response: " + translated);
+        }
+
+        return translated.toString().trim();
+    }
+
+    /**
+     * 複数メッセージをまとめて1回のリクエストで翻訳（非同期、受信メッセージの優先度で実行）
+     *
+     * @param texts 翻訳するテキストのリスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @param deadline 期限（エポックミリ秒、0は期限なし）。過ぎた場合は送信せずCancellationExceptionで完了
+     * @return 入力と同じ順序の翻訳リストのCompletableFuture（失敗時は例外で完了）
+     */
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, List<ChatMessage> contextMessages, String targetLanguage,
+                                                               long deadline) {
+        return scheduler.submit(Priority.INCOMING, deadline, () -> translateBatch(texts, contextMessages, targetLanguage));
+    }
+
+    /**
+     * 複数メッセージをまとめて1回のリクエストで翻訳（同期）
+     * 番号付きの複数行プロンプトを送り、応答を番号ごとに分割して返します
+     *
+     * @param texts 翻訳するテキストのリスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @return 入力と同じ順序の翻訳リスト（応答に含まれなかった番号の要素はnull）
+     * @throws IOException 通信エラー
+     * @throws InterruptedException スレッド中断
+     */
+    public List<String> translateBatch(List<String> texts, List<ChatMessage> contextMessages, String targetLanguage) throws IOException, InterruptedException {
+        StringBuilder numbered = new StringBuilder();
+        for (int i = 0; i < texts.size(); i++) {
+            if (i > 0) {
+                numbered.append('\n');
+            }
+            // 1メッセージ1行の形式を崩さないよう改行は空白に置換
+            numbered.append(i + 1).append(". ").append(texts.get(i).replaceAll("[\\r\\n]+", " "));
+        }
+
+        JsonObject requestBody = buildRequestBody(numbered.toString(), contextMessages, targetLanguage, false);
+        JsonObject systemMessage = requestBody.getAsJsonArray("messages").get(0).getAsJsonObject();
+        systemMessage.addProperty("content", systemMessage.get("content").getAsString() + BATCH_INSTRUCTION);
+        requestBody.addProperty("max_tokens", config.maxTokens * texts.size());
+
+        if (config.debugMode) {
+            System.out.println("[ChatLLM] Batch request: " + GSON.toJson(requestBody));
+        }
+
+        HttpResponse<String> response = sendCompletion(requestBody);
+        if (response.statusCode() != 200) {
+            throw new IOException("LLM server returned error: " + response.statusCode() + " - " + response.body());
+        }
+
+        if (config.debugMode) {
+            System.out.println("[ChatLLM] Batch response: " + response.body());
+        }
+
+        JsonObject responseJson = GSON.fromJson(response.body(), JsonObject.class);
+        if (!responseJson.has("choices") || responseJson.getAsJsonArray("choices").size() == 0) {
+            throw new IOException("Invalid response format from LLM server");
+        }
+        JsonObject message = responseJson.getAsJsonArray("choices").get(0).getAsJsonObject().getAsJsonObject("message");
+        if (message == null || !message.has("content")) {
+            throw new IOException("Invalid response format from LLM server");
+        }
+
+        // 番号ごとに分割（番号のない行は直前の番号の続きとして扱う）
+        Map<Integer, StringBuilder> byNumber = new TreeMap<>();
+        StringBuilder current = null;
+        for (String line : message.get("content").getAsString().split("\\r?\\n")) {
+            Matcher matcher = BATCH_LINE_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                int number = Integer.parseInt(matcher.group(1));
+                if (number >= 1 && number <= texts.size() && !byNumber.containsKey(number)) {
+                    current = new StringBuilder(matcher.group(2).trim());
+                    byNumber.put(number, current);
+                    continue;
+                }
+            }
+            if (current != null && !line.isBlank()) {
+                current.append(' ').append(line.trim());
+            }
+        }
+
+        List<String> results = new ArrayList<>(texts.size());
+        for (int i = 1; i <= texts.size(); i++) {
+            StringBuilder translated = byNumber.get(i);
+            results.add(translated == null || translated.isEmpty() ? null : translated.toString());
+        }
+        return results;
+    }
+
+    /**
+     * llama-serverのプロンプトキャッシュを事前に埋める（非同期、先読みの優先度で実行）
+     * 通常の翻訳と同じ形のリクエストを1トークンだけ生成させ、システムプロンプト部分のKVキャッシュを作ります
+     * 以降の翻訳はキャッシュされた先頭部分の処理を省略できます
+     *
+     * @param sampleText ユーザーメッセージとして送るテキスト（よく使われるメッセージ）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @return 完了のCompletableFuture（失敗時は例外で完了）
+     */
+    public CompletableFuture<Void> prefillPromptCacheAsync(String sampleText, String targetLanguage) {
+        return scheduler.submit(Priority.SPECULATIVE, 0, () -> {
+            JsonObject requestBody = buildRequestBody(sampleText, null, targetLanguage, false);
+            requestBody.addProperty("max_tokens", 1);
+            requestBody.addProperty("cache_prompt", true);
+
+            HttpResponse<String> response = sendCompletion(requestBody);
+            if (response.statusCode() != 200) {
+                throw new IOException("LLM server returned error: " + response.statusCode() + " - " + response.body());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * ストリーミングチャンク（chat.completion.chunk）から差分テキストを取り出す
+     *
+     * @param data data:行のJSON部分
+     * @return 差分テキスト（含まれない場合はnull）
+     */
+    private String extractStreamDelta(String data) throws IOException {
+        JsonObject chunk;
+        try {
+            chunk = GSON.fromJson(data, JsonObject.class);
+        } catch (com.google.gson.JsonSyntaxException e) {
+            throw new IOException("Invalid streaming chunk from LLM server: " + data, e);
+        }
+
+        if (chunk == null || !chunk.has("choices") || chunk.getAsJsonArray("choices").size() == 0) {
+            return null;
+        }
+
+        JsonObject choice = chunk.getAsJsonArray("choices").get(0).getAsJsonObject();
+        if (choice.has("delta") && choice.get("delta").isJsonObject()) {
+            JsonObject delta = choice.getAsJsonObject("delta");
+            if (delta.has("content") && !delta.get("content").isJsonNull()) {
+                return delta.get("content").getAsString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * チャット補完APIのリクエストボディを構築
+     *
+     * @param text 翻訳するテキスト
+     * @param contextMessages コンテキストとなる過去のメッセージ（nullの場合はコンテキストなし）
+     * @param targetLanguage 翻訳先言語（nullの場合は設定ファイルの言語を使用）
+     * @param stream ストリーミングで応答を受け取るかどうか
+     * @return リクエストボディ
+     */
+    private JsonObject buildRequestBody(String text, List<ChatMessage> contextMessages, String targetLanguage, boolean stream) {
         // メッセージリストを構築
         List<ChatMessage> messages = new ArrayList<>();
 
@@ -151,68 +510,173 @@ public class LLMClient {
         requestBody.addProperty("max_tokens", config.maxTokens);
         requestBody.addProperty("temperature", config.temperature);
         requestBody.addProperty("top_p", config.topP);
-        requestBody.addProperty("stream", false);
+        requestBody.addProperty("stream", stream);
+
+        return requestBody;
+    }
+
+    /**
+     * 空いているバックエンドを選んでチャット補完APIにリクエストを送信（応答を全て受け取るまで待つ）
+     *
+     * @param requestBody リクエストボディ
+     * @return HTTPレスポンス
+     */
+    private HttpResponse<String> sendCompletion(JsonObject requestBody) throws IOException, InterruptedException {
+        BackendPool.Backend backend = backendPool.acquire();
+        try {
+            return send(backend, requestBody, HttpResponse.BodyHandlers.ofString());
+        } finally {
+            backendPool.release(backend);
+        }
+    }
+
+    /**
+     * バックエンドにチャット補完APIのリクエストを送信し、バックエンドの状態を記録
+     * 接続できない場合と5xx（モデル読み込み中の503など）は失敗として記録し、しばらく他のバックエンドに振り分けます
+     *
+     * @param backend 送信先のバックエンド
+     * @param requestBody リクエストボディ
+     * @param bodyHandler レスポンスボディのハンドラ
+     * @return HTTPレスポンス
+     */
+    private <T> HttpResponse<T> send(BackendPool.Backend backend, JsonObject requestBody, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        HttpResponse<T> response;
+        try {
+            response = httpClient.send(buildCompletionRequest(backend, requestBody), bodyHandler);
+        } catch (IOException e) {
+            backendPool.recordFailure(backend);
+            // 自動起動したllama-serverが再起動中なら、復帰を待って一度だけ送り直す
+            if (!awaitServerRecovery()) {
+                throw e;
+            }
+            try {
+                response = httpClient.send(buildCompletionRequest(backend, requestBody), bodyHandler);
+            } catch (IOException retryFailure) {
+                backendPool.recordFailure(backend);
+                throw retryFailure;
+            }
+        }
+        if (response.statusCode() >= 500) {
+            backendPool.recordFailure(backend);
+        } else {
+            backendPool.recordSuccess(backend);
+        }
+        return response;
+    }
 
+    /**
+     * 自動起動したllama-serverが再起動中の場合、準備ができるまで待つ（最大serverReadyWaitMs）
+     *
+     * @return 再起動中で、待っている間に準備ができた場合true（再起動中でない場合はすぐにfalse）
+     */
+    private boolean awaitServerRecovery() throws InterruptedException {
+        Supplier<CompletableFuture<Void>> supplier = serverReadySupplier;
+        CompletableFuture<Void> ready = supplier != null ? supplier.get() : null;
+        if (ready == null || ready.isDone()) {
+            return false;
+        }
         if (config.debugMode) {
-            System.out.println("[ChatLLM] Request: " + GSON.toJson(requestBody));
+            System.out.println("[ChatLLM] LLM server is restarting, waiting to replay request");
+        }
+        try {
+            ready.get(config.serverReadyWaitMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
         }
+    }
 
-        // HTTPリクエストを構築
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(config.llmServerUrl + "/v1/chat/completions"))
+    /**
+     * 自動起動したllama-serverの準備完了を取得する方法を設定
+     * 設定すると、再起動中に送れなかったリクエストを復帰後に送り直します
+     *
+     * @param supplier 準備完了のCompletableFutureを返す関数
+     */
+    public void setServerReadySupplier(Supplier<CompletableFuture<Void>> supplier) {
+        this.serverReadySupplier = supplier;
+    }
+
+    /**
+     * チャット補完APIへのHTTPリクエストを構築
+     *
+     * @param backend 送信先のバックエンド
+     * @param requestBody リクエストボディ
+     * @return HTTPリクエスト
+     */
+    private HttpRequest buildCompletionRequest(BackendPool.Backend backend, JsonObject requestBody) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(backend.url + "/v1/chat/completions"))
                 .header("Content-Type", "application/json")
                 .timeout(Duration.ofMillis(config.requestTimeout))
                 .POST(HttpRequest.BodyPublishers.ofString(GSON.toJson(requestBody)))
                 .build();
+    }
 
-        // HTTPリクエストを送信
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-        // レスポンスをパース
-        if (response.statusCode() == 200) {
-            JsonObject responseJson = GSON.fromJson(response.body(), JsonObject.class);
-
-            if (config.debugMode) {
-                System.out.println("[ChatLLM] Response: " + response.body());
-            }
+    /**
+     * 翻訳リクエストのスケジューラを取得
+     *
+     * @return スケジューラ
+     */
+    public TranslationScheduler getScheduler() {
+        return scheduler;
+    }
 
-            // OpenAI互換レスポンスから翻訳テキストを抽出
-            if (responseJson.has("choices") && responseJson.getAsJsonArray("choices").size() > 0) {
-                JsonObject choice = responseJson.getAsJsonArray("choices").get(0).getAsJsonObject();
-                if (choice.has("message")) {
-                    JsonObject message = choice.getAsJsonObject("message");
-                    if (message.has("content")) {
-                        return message.get("content").getAsString().trim();
-                    }
-                }
-            }
+    /**
+     * バックエンドのプールを取得
+     *
+     * @return バックエンドのプール
+     */
+    public BackendPool getBackendPool() {
+        return backendPool;
+    }
 
-            throw new IOException("Invalid response format from LLM server");
-        } else {
-            throw new IOException("LLM server returned error: " + response.statusCode() + " - " + response.body());
+    /**
+     * 自動起動したllama-serverのワーカーのURLを振り分け先に反映
+     * llmBackendUrlsが空で、ワーカーを複数起動する設定の場合のみ使用します
+     * バックエンドの数が変わると同時実行数の合計も変わるため、スケジューラのワーカー数も合わせます
+     *
+     * @param endpoints 起動したワーカーのURL
+     */
+    public void setLlamaEndpoints(List<String> endpoints) {
+        if (BackendPool.usesLlamaWorkers(config) && !endpoints.isEmpty()) {
+            backendPool.setBackends(endpoints, BackendPool.configuredConcurrency(config));
+            scheduler.setWorkerCount(backendPool.getTotalConcurrency());
         }
     }
 
     /**
-     * サーバーの接続テスト
+     * サーバーの接続テスト（すべてのバックエンドを確認し、結果をプールの状態に反映）
      *
-     * @return 接続成功の場合true
+     * @return 1つ以上のバックエンドに接続できた場合true
      */
     public boolean testConnection() {
-        try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(config.llmServerUrl + "/health"))
-                    .timeout(Duration.ofSeconds(5))
-                    .GET()
-                    .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            return response.statusCode() == 200;
-        } catch (Exception e) {
-            if (config.debugMode) {
-                System.err.println("[ChatLLM] Connection test failed: " + e.getMessage());
+        boolean connected = false;
+        for (BackendPool.Backend backend : backendPool.getBackends()) {
+            try {
+                HttpRequest request = HttpRequest.newBuilder()
+                        .uri(URI.create(backend.url + "/health"))
+                        .timeout(Duration.ofSeconds(5))
+                        .GET()
+                        .build();
+
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() == 200) {
+                    backendPool.recordSuccess(backend);
+                    connected = true;
+                } else {
+                    backendPool.recordFailure(backend);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return connected;
+            } catch (Exception e) {
+                backendPool.recordFailure(backend);
+                if (config.debugMode) {
+                    System.err.println("[ChatLLM] Connection test failed for " + backend.url + ": " + e.getMessage());
+                }
             }
-            return false;
         }
+        return connected;
     }
 }
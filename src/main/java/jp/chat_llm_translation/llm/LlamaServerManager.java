@@ -3,36 +3,83 @@ package jp.chat_llm_translation.llm;
 import jp.chat_llm_translation.Chat_llm_translation;
 import jp.chat_llm_translation.config.ModConfig;
 import jp.chat_llm_translation.downloader.ModelDownloader;
-import net.fabricmc.loader.api.FabricLoader;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.http.HttpClient;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * llama-serverプロセスを管理するクラス
  * MOD起動時に自動的にllama-serverを起動し、MOD終了時に停止します
+ *
+ * llamaWorkersが2以上の場合は、ポートを1つずつずらした複数のワーカープロセスを並列に起動し、
+ * スレッド数を分け合います（Linuxではtaskset/numactlでワーカーごとにCPUを固定できます）
+ * 各ワーカーは個別に起動・停止され、ワーカーのURLはリスナー経由でLLMClientの振り分け先になります
+ *
+ * 起動後は/healthを問い合わせてモデルの読み込み完了を待ち、最初のワーカーの準備ができた時点でgetReadyFuture()を完了します
+ * 翻訳リクエストはそれまで待たせることができ、読み込み前に送って失敗することがありません
+ *
+ * 起動後はスーパーバイザーとして状態（State）を管理します
+ * 異常終了したワーカーは間隔を延ばしながら起動し直し、短時間に異常終了を繰り返す場合（クラッシュループ）はあきらめます
+ * 準備ができたワーカーが1つもない間はgetReadyFuture()を未完了に戻し、その間の翻訳リクエストは復帰後に送られます
  */
 public class LlamaServerManager {
-    private Process serverProcess;
+    /**
+     * スーパーバイザーの状態
+     */
+    public enum State {
+        /** 起動中（モデルの読み込み待ち） */
+        STARTING,
+        /** すべてのワーカーの準備ができている */
+        READY,
+        /** 一部のワーカーだけが準備できている（残りは再起動待ち、またはあきらめた） */
+        DEGRADED,
+        /** 準備ができたワーカーがなく、再起動を待っている */
+        RESTARTING,
+        /** 停止中（未起動、停止、起動失敗、すべてのワーカーの再起動をあきらめた） */
+        STOPPED
+    }
+
+    /**
+     * 異常終了したワーカーを起動し直すまでの待ち時間の初期値と上限（ミリ秒、異常終了が続くほど倍に延ばす）
+     */
+    private static final long INITIAL_RESTART_DELAY_MILLIS = 1_000;
+    private static final long MAX_RESTART_DELAY_MILLIS = 60_000;
+
     private final ModConfig config;
-    private Thread outputReaderThread;
-    private Thread errorReaderThread;
-    private volatile boolean isRunning = false;
+    private final HttpClient httpClient;
+    private final ExecutorService startExecutor;
+    private volatile List<LlamaWorker> workers = List.of();
+    private volatile State state = State.STOPPED;
+    private volatile Consumer<List<String>> endpointListener;
+    private volatile CompletableFuture<Void> readyFuture;
 
     public LlamaServerManager() {
         this.config = ModConfig.getInstance();
+        // 自動起動する場合は起動するまで準備中、しない場合は外部のサーバーを使うので準備済みとして扱う
+        this.readyFuture = config.autoStartLlamaServer ? new CompletableFuture<>() : CompletableFuture.completedFuture(null);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+        this.startExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "chat-llm-translation-llama-start");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * llama-serverを起動
+     * llama-serverを起動（ワーカーが複数の場合は並列に起動）
      *
-     * @return 起動成功の場合true
+     * @return 1つ以上のワーカーの起動に成功した場合true
      */
     public CompletableFuture<Boolean> startServer() {
         return CompletableFuture.supplyAsync(() -> {
@@ -41,9 +88,12 @@ public class LlamaServerManager {
                 return false;
             }
 
-            if (isRunning && serverProcess != null && serverProcess.isAlive()) {
-                Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server is already running");
-                return true;
+            synchronized (this) {
+                if (state != State.STOPPED) {
+                    Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server is already running");
+                    return true;
+                }
+                state = State.STARTING;
             }
 
             try {
@@ -56,135 +106,309 @@ public class LlamaServerManager {
                 // llama-serverが存在するか確認
                 if (!Files.exists(llamaServerPath)) {
                     Chat_llm_translation.LOGGER.error("[ChatLLM] llama-server not found at: {}", llamaServerPath);
+                    transitionTo(State.STOPPED);
                     return false;
                 }
 
                 // モデルファイルが存在するか確認
                 if (!Files.exists(modelPath)) {
                     Chat_llm_translation.LOGGER.error("[ChatLLM] Model file not found at: {}", modelPath);
+                    transitionTo(State.STOPPED);
                     return false;
                 }
 
-                // コマンドライン引数を構築
-                List<String> command = buildCommand(llamaServerPath, modelPath);
-
-                Chat_llm_translation.LOGGER.info("[ChatLLM] Starting llama-server with command: {}", String.join(" ", command));
-
-                // プロセスビルダーを作成
-                ProcessBuilder processBuilder = new ProcessBuilder(command);
-                processBuilder.directory(llamaServerPath.getParent().toFile());
-
-                // 環境変数を設定（マルチGPU対応）
                 if (config.llamaGpuId >= 0) {
-                    processBuilder.environment().put("CUDA_VISIBLE_DEVICES", String.valueOf(config.llamaGpuId));
                     Chat_llm_translation.LOGGER.info("[ChatLLM] Setting CUDA_VISIBLE_DEVICES={}", config.llamaGpuId);
                 }
 
-                // プロセスを起動
-                serverProcess = processBuilder.start();
-                isRunning = true;
-
-                // 標準出力を読み取るスレッド
-                outputReaderThread = new Thread(() -> {
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(serverProcess.getInputStream()))) {
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            if (config.debugMode) {
-                                Chat_llm_translation.LOGGER.info("[llama-server] {}", line);
-                            }
-                        }
-                    } catch (IOException e) {
-                        if (isRunning) {
-                            Chat_llm_translation.LOGGER.error("[ChatLLM] Error reading llama-server output", e);
-                        }
-                    }
-                }, "llama-server-output-reader");
-                outputReaderThread.setDaemon(true);
-                outputReaderThread.start();
-
-                // 標準エラー出力を読み取るスレッド
-                errorReaderThread = new Thread(() -> {
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(serverProcess.getErrorStream()))) {
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            Chat_llm_translation.LOGGER.warn("[llama-server] {}", line);
-                        }
-                    } catch (IOException e) {
-                        if (isRunning) {
-                            Chat_llm_translation.LOGGER.error("[ChatLLM] Error reading llama-server error output", e);
-                        }
-                    }
-                }, "llama-server-error-reader");
-                errorReaderThread.setDaemon(true);
-                errorReaderThread.start();
-
-                // プロセス終了を監視するスレッド
-                Thread watchdogThread = new Thread(() -> {
-                    try {
-                        int exitCode = serverProcess.waitFor();
-                        isRunning = false;
-                        if (exitCode != 0) {
-                            Chat_llm_translation.LOGGER.error("[ChatLLM] llama-server exited with code: {}", exitCode);
-                        } else {
-                            Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server stopped normally");
-                        }
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
+                // ワーカーを作成し、並列に起動する
+                int workerCount = Math.max(1, config.llamaWorkers);
+                List<LlamaWorker> created = new ArrayList<>(workerCount);
+                for (int i = 0; i < workerCount; i++) {
+                    created.add(new LlamaWorker(i, config.llamaServerPort + i,
+                            buildCommand(llamaServerPath, modelPath, i), llamaServerPath.getParent(), httpClient));
+                }
+                workers = created;
+                synchronized (this) {
+                    if (readyFuture.isDone()) {
+                        readyFuture = new CompletableFuture<>();
                     }
-                }, "llama-server-watchdog");
-                watchdogThread.setDaemon(true);
-                watchdogThread.start();
+                }
 
-                // サーバーが起動するまで少し待つ
-                Thread.sleep(2000);
+                // 最初に準備ができたワーカーで翻訳を始められるようにする
+                List<CompletableFuture<Boolean>> starts = new ArrayList<>(workerCount);
+                for (LlamaWorker worker : created) {
+                    starts.add(CompletableFuture.supplyAsync(() -> startWorker(worker), startExecutor));
+                }
+                List<LlamaWorker> failed = new ArrayList<>();
+                for (int i = 0; i < workerCount; i++) {
+                    if (!starts.get(i).join()) {
+                        failed.add(created.get(i));
+                    }
+                }
 
-                Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server started successfully on port {}", config.llamaServerPort);
+                if (failed.size() == workerCount) {
+                    // 設定やモデルの問題の可能性が高いので、起動に失敗した場合は再起動しない
+                    transitionTo(State.STOPPED);
+                    return false;
+                }
+                synchronized (this) {
+                    if (state != State.STARTING) {
+                        // 起動中に停止された
+                        return false;
+                    }
+                    state = State.READY;
+                }
+                Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server started successfully: {}/{} workers from port {} (model load {} ms)",
+                        workerCount - failed.size(), workerCount, config.llamaServerPort, getModelLoadTimeMillis());
+                // 一部のワーカーだけ起動に失敗した場合は、異常終了と同じく間隔を空けて起動し直す
+                for (LlamaWorker worker : failed) {
+                    onWorkerFailed(worker);
+                }
+                updateState();
+                notifyEndpoints();
                 return true;
 
             } catch (Exception e) {
                 Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to start llama-server", e);
-                isRunning = false;
+                transitionTo(State.STOPPED);
                 return false;
             }
         });
     }
 
     /**
-     * llama-serverを停止
+     * ワーカーを起動し、準備ができたら状態に反映（起動スレッドで呼び出す）
+     *
+     * @return 準備ができた場合true
+     */
+    private boolean startWorker(LlamaWorker worker) {
+        boolean started = worker.start(exitCode -> onWorkerFailed(worker));
+        if (started) {
+            updateState();
+        }
+        return started;
+    }
+
+    /**
+     * スーパーバイザーの状態を取得
+     *
+     * @return 状態
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * llama-serverの準備ができたときに完了するCompletableFutureを取得
+     * 自動起動しない設定の場合は完了済みです。起動に失敗した場合・停止した場合は例外で完了します
+     *
+     * @return 準備完了のCompletableFuture
+     */
+    public CompletableFuture<Void> getReadyFuture() {
+        return readyFuture;
+    }
+
+    /**
+     * 直近の起動でモデルの読み込みにかかった時間（準備ができたワーカーのうち最も遅いもの）
+     *
+     * @return 読み込み時間（ミリ秒、準備ができたワーカーがない場合は-1）
+     */
+    public long getModelLoadTimeMillis() {
+        long loadTime = -1;
+        for (LlamaWorker worker : workers) {
+            loadTime = Math.max(loadTime, worker.getLoadTimeMillis());
+        }
+        return loadTime;
+    }
+
+    /**
+     * llama-serverを停止（すべてのワーカー）
      */
     public void stopServer() {
-        if (serverProcess != null && serverProcess.isAlive()) {
-            Chat_llm_translation.LOGGER.info("[ChatLLM] Stopping llama-server...");
-            isRunning = false;
+        List<LlamaWorker> current = workers;
+        if (state == State.STOPPED && current.stream().noneMatch(LlamaWorker::isAlive)) {
+            return;
+        }
 
-            try {
-                // 正常終了を試みる
-                serverProcess.destroy();
+        Chat_llm_translation.LOGGER.info("[ChatLLM] Stopping llama-server...");
+        transitionTo(State.STOPPED);
 
-                // 最大5秒待つ
-                if (!serverProcess.waitFor(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                    Chat_llm_translation.LOGGER.warn("[ChatLLM] llama-server did not stop gracefully, forcing shutdown...");
-                    serverProcess.destroyForcibly();
-                }
+        // 各ワーカーの終了待ちを並列に行う
+        List<CompletableFuture<Void>> stops = new ArrayList<>(current.size());
+        for (LlamaWorker worker : current) {
+            stops.add(CompletableFuture.runAsync(worker::stop, startExecutor));
+        }
+        CompletableFuture.allOf(stops.toArray(new CompletableFuture[0])).join();
+
+        Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server stopped");
+    }
+
+    /**
+     * ワーカーが異常終了した・起動し直せなかった時の処理（ウォッチドッグスレッド・起動スレッドから呼び出される）
+     * 異常終了が続くほど間隔を延ばして起動し直し、llamaCrashLoopWindowMsの間にllamaMaxRestarts回を超えたらあきらめます
+     */
+    private void onWorkerFailed(LlamaWorker worker) {
+        List<LlamaWorker> current = workers;
+        if (state == State.STOPPED || !current.contains(worker)) {
+            return;
+        }
+
+        int crashes = worker.recordCrash(config.llamaCrashLoopWindowMs);
+        if (!config.llamaAutoRestart || crashes > config.llamaMaxRestarts) {
+            if (config.llamaAutoRestart) {
+                Chat_llm_translation.LOGGER.error("[ChatLLM] llama-server worker {} crashed {} times within {} ms, giving up (crash loop)",
+                        worker.index, crashes, config.llamaCrashLoopWindowMs);
+            }
+            worker.abandon();
+            updateState();
+            return;
+        }
+
+        long delay = Math.min(MAX_RESTART_DELAY_MILLIS, INITIAL_RESTART_DELAY_MILLIS << Math.min(crashes - 1, 16));
+        Chat_llm_translation.LOGGER.warn("[ChatLLM] Restarting llama-server worker {} in {} ms (crash {} of {} allowed)",
+                worker.index, delay, crashes, config.llamaMaxRestarts);
+        updateState();
+        CompletableFuture.runAsync(() -> {
+            // 待っている間に停止・起動し直した場合は何もしない
+            if (state == State.STOPPED || workers != current || worker.isAlive()) {
+                return;
+            }
+            if (!startWorker(worker)) {
+                onWorkerFailed(worker);
+            }
+        }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, startExecutor));
+    }
 
-                Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server stopped");
-            } catch (InterruptedException e) {
-                Chat_llm_translation.LOGGER.error("[ChatLLM] Error stopping llama-server", e);
-                serverProcess.destroyForcibly();
-                Thread.currentThread().interrupt();
+    /**
+     * ワーカーの状態からスーパーバイザーの状態を決め、準備完了のCompletableFutureに反映
+     * 準備ができたワーカーがなくなった場合は未完了のCompletableFutureに差し替え、以降の翻訳を復帰まで待たせます
+     */
+    private synchronized void updateState() {
+        if (state == State.STOPPED) {
+            return;
+        }
+        List<LlamaWorker> current = workers;
+        int readyCount = 0;
+        int abandonedCount = 0;
+        for (LlamaWorker worker : current) {
+            if (worker.isReady()) {
+                readyCount++;
+            } else if (worker.isAbandoned()) {
+                abandonedCount++;
             }
+        }
+
+        if (readyCount > 0) {
+            readyFuture.complete(null);
+        } else if (readyFuture.isDone()) {
+            readyFuture = new CompletableFuture<>();
+        }
+
+        State next;
+        if (state == State.STARTING) {
+            next = State.STARTING;
+        } else if (readyCount == current.size()) {
+            next = State.READY;
+        } else if (readyCount > 0) {
+            next = State.DEGRADED;
+        } else if (abandonedCount < current.size()) {
+            next = State.RESTARTING;
+        } else {
+            Chat_llm_translation.LOGGER.error("[ChatLLM] No llama-server workers left to restart, supervisor stopped");
+            transitionTo(State.STOPPED);
+            return;
+        }
+        if (next != state) {
+            Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server state: {} -> {} ({}/{} workers ready)",
+                    state, next, readyCount, current.size());
+            state = next;
+        }
+    }
 
-            serverProcess = null;
+    /**
+     * 状態を変更（STOPPEDの場合は待っている翻訳を失敗させ、以降も待たせない）
+     */
+    private synchronized void transitionTo(State next) {
+        state = next;
+        if (next == State.STOPPED) {
+            IllegalStateException stopped = new IllegalStateException("llama-server stopped");
+            readyFuture.completeExceptionally(stopped);
+            readyFuture = CompletableFuture.failedFuture(stopped);
         }
     }
 
     /**
      * llama-serverが実行中かどうかを確認
+     * 再起動を待っている間も実行中として扱います（スーパーバイザーが停止した場合はfalse）
      *
-     * @return 実行中の場合true
+     * @return 起動中・実行中・再起動待ちの場合true
      */
     public boolean isRunning() {
-        return isRunning && serverProcess != null && serverProcess.isAlive();
+        return state != State.STOPPED;
+    }
+
+    /**
+     * 起動したワーカーの一覧を取得
+     *
+     * @return ワーカー（未起動の場合は空）
+     */
+    public List<LlamaWorker> getWorkers() {
+        return workers;
+    }
+
+    /**
+     * ワーカーのURLを取得
+     *
+     * @return URLのリスト（未起動の場合は空）
+     */
+    public List<String> getEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        for (LlamaWorker worker : workers) {
+            endpoints.add(worker.getUrl());
+        }
+        return endpoints;
+    }
+
+    /**
+     * 設定から起動するワーカーのURLを求める（起動前にLLMClientの振り分け先を決めるため）
+     *
+     * @param config 設定
+     * @return URLのリスト
+     */
+    public static List<String> workerEndpoints(ModConfig config) {
+        List<String> endpoints = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, config.llamaWorkers); i++) {
+            endpoints.add("http://localhost:" + (config.llamaServerPort + i));
+        }
+        return endpoints;
+    }
+
+    /**
+     * ワーカーのURLが変わったときに呼び出すリスナーを設定
+     *
+     * @param listener ワーカーのURLのリストを受け取るリスナー
+     */
+    public void setEndpointListener(Consumer<List<String>> listener) {
+        this.endpointListener = listener;
+    }
+
+    private void notifyEndpoints() {
+        Consumer<List<String>> listener = endpointListener;
+        if (listener != null) {
+            listener.accept(getEndpoints());
+        }
+    }
+
+    /**
+     * ワーカー1つあたりのスレッド数
+     */
+    private int threadsPerWorker() {
+        int workerCount = Math.max(1, config.llamaWorkers);
+        if (config.llamaWorkerThreads > 0) {
+            return config.llamaWorkerThreads;
+        }
+        return Math.max(1, config.llamaThreads / workerCount);
     }
 
     /**
@@ -192,10 +416,15 @@ public class LlamaServerManager {
      *
      * @param llamaServerPath llama-serverの実行ファイルパス
      * @param modelPath モデルファイルパス
+     * @param workerIndex ワーカー番号
      * @return コマンドライン引数のリスト
      */
-    private List<String> buildCommand(Path llamaServerPath, Path modelPath) {
+    private List<String> buildCommand(Path llamaServerPath, Path modelPath, int workerIndex) {
         List<String> command = new ArrayList<>();
+        int threads = threadsPerWorker();
+
+        // CPUの固定（Linuxのみ）
+        command.addAll(buildPinningPrefix(workerIndex, threads));
 
         // 実行ファイル
         command.add(llamaServerPath.toAbsolutePath().toString());
@@ -206,7 +435,7 @@ public class LlamaServerManager {
 
         // ポート
         command.add("--port");
-        command.add(String.valueOf(config.llamaServerPort));
+        command.add(String.valueOf(config.llamaServerPort + workerIndex));
 
         // コンテキストサイズ
         command.add("--ctx-size");
@@ -222,7 +451,7 @@ public class LlamaServerManager {
 
         // スレッド数
         command.add("--threads");
-        command.add(String.valueOf(config.llamaThreads));
+        command.add(String.valueOf(threads));
 
         // 並列処理数
         command.add("--parallel");
@@ -243,4 +472,39 @@ public class LlamaServerManager {
 
         return command;
     }
+
+    /**
+     * ワーカーをCPUに固定するコマンドの前置き
+     * taskset: llamaCpuSetsの指定（";"区切り）か、ワーカー番号 × スレッド数から始まる連続したCPU
+     * numactl: llamaCpuSetsの指定か、ワーカー番号と同じNUMAノード（CPUとメモリの両方）
+     *
+     * @param workerIndex ワーカー番号
+     * @param threads ワーカーのスレッド数
+     * @return 前置きする引数（固定しない場合は空）
+     */
+    private List<String> buildPinningPrefix(int workerIndex, int threads) {
+        String mode = config.llamaCpuPinning == null ? "none" : config.llamaCpuPinning.toLowerCase();
+        if (mode.equals("none") || !System.getProperty("os.name").toLowerCase().contains("linux")) {
+            return List.of();
+        }
+
+        String[] sets = config.llamaCpuSets == null || config.llamaCpuSets.isBlank() ? new String[0] : config.llamaCpuSets.split(";");
+        String set = workerIndex < sets.length ? sets[workerIndex].trim() : null;
+        switch (mode) {
+            case "taskset": {
+                if (set == null) {
+                    int first = workerIndex * threads;
+                    set = first + "-" + (first + threads - 1);
+                }
+                return List.of("taskset", "-c", set);
+            }
+            case "numactl": {
+                String node = set != null ? set : String.valueOf(workerIndex);
+                return List.of("numactl", "--cpunodebind=" + node, "--membind=" + node);
+            }
+            default:
+                Chat_llm_translation.LOGGER.warn("[ChatLLM] Unknown llamaCpuPinning: {}", config.llamaCpuPinning);
+                return List.of();
+        }
+    }
 }
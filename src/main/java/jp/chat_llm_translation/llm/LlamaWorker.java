@@ -0,0 +1,370 @@
+package jp.chat_llm_translation.llm;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.config.ModConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+/**
+ * llama-serverのワーカープロセス1つ
+ * ワーカーごとにポートとスレッド数（Linuxでは任意でCPUセット）を持ち、個別に起動・停止・再起動できます
+ *
+ * llama-serverの出力は直近の行だけをリングバッファに残し、異常終了・起動失敗の際に末尾をログに出します
+ * 再起動の判断に使う異常終了の履歴もワーカーごとに保持します（再起動の制御はLlamaServerManager）
+ */
+public class LlamaWorker {
+    /**
+     * /healthを問い合わせる間隔の初期値と上限（ミリ秒）
+     */
+    private static final long INITIAL_PROBE_DELAY_MILLIS = 100;
+    private static final long MAX_PROBE_DELAY_MILLIS = 2_000;
+
+    /**
+     * 診断用に保持するllama-serverの出力の行数と、異常終了時にログに出す行数
+     */
+    private static final int OUTPUT_BUFFER_LINES = 200;
+    private static final int OUTPUT_DUMP_LINES = 20;
+
+    public final int index;
+    public final int port;
+    private final List<String> command;
+    private final Path workingDirectory;
+    private final ModConfig config;
+    private final HttpClient httpClient;
+
+    private volatile Process process;
+    private volatile boolean stopping;
+    private volatile long startedAt;
+    private volatile long loadTimeMillis = -1;
+    private volatile boolean ready;
+    private volatile boolean abandoned;
+
+    // 起動は同時に1つだけ（出力の読み取りスレッドを止めないよう、ワーカーのモニターとは別のロックを使う）
+    private final Object startLock = new Object();
+
+    // 出力のリングバッファ（読み取りスレッドが準備待ちの間も止まらないよう、専用のロックで保護）
+    private final Object outputLock = new Object();
+    private final String[] recentOutput = new String[OUTPUT_BUFFER_LINES];
+    private long outputCount;
+    private final Deque<Long> crashTimes = new ArrayDeque<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param index ワーカー番号（0から）
+     * @param port 待ち受けるポート
+     * @param command 起動コマンド（CPUの固定を含む）
+     * @param workingDirectory 作業ディレクトリ
+     * @param httpClient 準備の確認に使うHTTPクライアント
+     */
+    public LlamaWorker(int index, int port, List<String> command, Path workingDirectory, HttpClient httpClient) {
+        this.index = index;
+        this.port = port;
+        this.command = List.copyOf(command);
+        this.workingDirectory = workingDirectory;
+        this.httpClient = httpClient;
+        this.config = ModConfig.getInstance();
+    }
+
+    /**
+     * ワーカーのプロセスを起動
+     * モデルの読み込みが終わるまで（/healthが200を返すまで）戻りません
+     *
+     * @param onExit 準備ができた後、停止を要求していないのにプロセスが終了した場合に終了コードを受け取るコールバック
+     *               （準備ができる前に終了した場合は呼び出さず、falseを返す）
+     * @return 準備ができた場合true
+     */
+    public boolean start(IntConsumer onExit) {
+        synchronized (startLock) {
+            return launch(onExit);
+        }
+    }
+
+    private boolean launch(IntConsumer onExit) {
+        if (isAlive()) {
+            return true;
+        }
+
+        try {
+            Chat_llm_translation.LOGGER.info("[ChatLLM] Starting llama-server worker {} with command: {}", index, String.join(" ", command));
+
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.directory(workingDirectory.toFile());
+
+            // 環境変数を設定（マルチGPU対応）
+            if (config.llamaGpuId >= 0) {
+                processBuilder.environment().put("CUDA_VISIBLE_DEVICES", String.valueOf(config.llamaGpuId));
+            }
+
+            stopping = false;
+            ready = false;
+            loadTimeMillis = -1;
+            Process started = processBuilder.start();
+            process = started;
+            startedAt = System.currentTimeMillis();
+
+            // 標準出力を読み取るスレッド
+            Thread outputReaderThread = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(started.getInputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        recordOutput(line);
+                        if (config.debugMode) {
+                            Chat_llm_translation.LOGGER.info("[llama-server:{}] {}", index, line);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!stopping) {
+                        Chat_llm_translation.LOGGER.error("[ChatLLM] Error reading llama-server output", e);
+                    }
+                }
+            }, "llama-server-output-reader-" + index);
+            outputReaderThread.setDaemon(true);
+            outputReaderThread.start();
+
+            // 標準エラー出力を読み取るスレッド
+            Thread errorReaderThread = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(started.getErrorStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        // llama-serverは通常のログも標準エラー出力に書くため、デバッグモード以外ではバッファに残すだけにする
+                        recordOutput(line);
+                        if (config.debugMode) {
+                            Chat_llm_translation.LOGGER.warn("[llama-server:{}] {}", index, line);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!stopping) {
+                        Chat_llm_translation.LOGGER.error("[ChatLLM] Error reading llama-server error output", e);
+                    }
+                }
+            }, "llama-server-error-reader-" + index);
+            errorReaderThread.setDaemon(true);
+            errorReaderThread.start();
+
+            // 読み込み中の終了はstartの戻り値で、準備ができた後の終了はonExitで、どちらか一方だけで通知する
+            AtomicBoolean settled = new AtomicBoolean(false);
+
+            // プロセス終了を監視するスレッド
+            Thread watchdogThread = new Thread(() -> {
+                try {
+                    int exitCode = started.waitFor();
+                    if (stopping || process != started) {
+                        Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server worker {} stopped normally", index);
+                        return;
+                    }
+                    if (settled.compareAndSet(false, true)) {
+                        return; // 読み込み中に終了した（startがfalseを返す）
+                    }
+                    ready = false;
+                    Chat_llm_translation.LOGGER.error("[ChatLLM] llama-server worker {} exited with code: {}", index, exitCode);
+                    logRecentOutput();
+                    onExit.accept(exitCode);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "llama-server-watchdog-" + index);
+            watchdogThread.setDaemon(true);
+            watchdogThread.start();
+
+            // モデルの読み込みが終わり、/healthが200を返すまで待つ
+            if (!awaitReady(started) || !settled.compareAndSet(false, true)) {
+                stop();
+                logRecentOutput();
+                return false;
+            }
+            loadTimeMillis = System.currentTimeMillis() - startedAt;
+            ready = true;
+            Chat_llm_translation.LOGGER.info("[ChatLLM] llama-server worker {} ready on port {} (model loaded in {} ms)",
+                    index, port, loadTimeMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to start llama-server worker {}", index, e);
+            return false;
+        }
+    }
+
+    /**
+     * /healthを指数バックオフで問い合わせ、モデルの読み込み完了を待つ
+     * llama-serverは読み込み中は503を返し、読み込みが終わると200を返します
+     *
+     * @param started 起動したプロセス
+     * @return 準備ができた場合true（プロセスが終了した場合、タイムアウトした場合はfalse）
+     */
+    private boolean awaitReady(Process started) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(getUrl() + "/health"))
+                .timeout(Duration.ofSeconds(2))
+                .GET()
+                .build();
+
+        long timeoutAt = startedAt + config.llamaReadyTimeoutMs;
+        long delay = INITIAL_PROBE_DELAY_MILLIS;
+        while (true) {
+            Thread.sleep(delay);
+            if (!started.isAlive() || stopping) {
+                Chat_llm_translation.LOGGER.error("[ChatLLM] llama-server worker {} exited before it became ready", index);
+                return false;
+            }
+            try {
+                HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    return true;
+                }
+            } catch (IOException e) {
+                // まだポートを開いていない
+            }
+            if (System.currentTimeMillis() >= timeoutAt) {
+                Chat_llm_translation.LOGGER.error("[ChatLLM] llama-server worker {} did not become ready within {} ms", index,
+                        config.llamaReadyTimeoutMs);
+                return false;
+            }
+            delay = Math.min(delay * 2, MAX_PROBE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * ワーカーのプロセスを停止（起動中・準備待ちの場合も停止できる）
+     */
+    public void stop() {
+        Process current = process;
+        stopping = true;
+        ready = false;
+        if (current == null || !current.isAlive()) {
+            return;
+        }
+
+        try {
+            // 正常終了を試みる
+            current.destroy();
+
+            // 最大5秒待つ
+            if (!current.waitFor(5, TimeUnit.SECONDS)) {
+                Chat_llm_translation.LOGGER.warn("[ChatLLM] llama-server worker {} did not stop gracefully, forcing shutdown...", index);
+                current.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            current.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * プロセスが実行中かどうか
+     *
+     * @return 実行中の場合true
+     */
+    public boolean isAlive() {
+        Process current = process;
+        return current != null && current.isAlive();
+    }
+
+    /**
+     * 直近の起動でモデルの読み込みにかかった時間（ミリ秒、準備ができていない場合は-1）
+     */
+    public long getLoadTimeMillis() {
+        return loadTimeMillis;
+    }
+
+    /**
+     * モデルの読み込みが終わり、リクエストを受け付けられる状態かどうか
+     *
+     * @return 準備ができていて、プロセスが実行中の場合true
+     */
+    public boolean isReady() {
+        return ready && isAlive();
+    }
+
+    /**
+     * 異常終了を記録し、直近の一定時間内の回数を取得
+     *
+     * @param windowMillis 数える時間の範囲（ミリ秒）
+     * @return 範囲内の異常終了の回数（今回を含む）
+     */
+    public synchronized int recordCrash(long windowMillis) {
+        long now = System.currentTimeMillis();
+        crashTimes.addLast(now);
+        while (!crashTimes.isEmpty() && crashTimes.peekFirst() < now - windowMillis) {
+            crashTimes.removeFirst();
+        }
+        return crashTimes.size();
+    }
+
+    /**
+     * 異常終了を繰り返したため、再起動をあきらめたかどうか
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * 再起動をあきらめたことを記録
+     */
+    public void abandon() {
+        abandoned = true;
+    }
+
+    /**
+     * llama-serverの出力をリングバッファに追加（古い行から上書き）
+     */
+    private void recordOutput(String line) {
+        synchronized (outputLock) {
+            recentOutput[(int) (outputCount % OUTPUT_BUFFER_LINES)] = line;
+            outputCount++;
+        }
+    }
+
+    /**
+     * 直近のllama-serverの出力を取得（診断用）
+     *
+     * @return 古い順の出力行（最大OUTPUT_BUFFER_LINES行）
+     */
+    public List<String> getRecentOutput() {
+        synchronized (outputLock) {
+            int size = (int) Math.min(outputCount, OUTPUT_BUFFER_LINES);
+            List<String> lines = new ArrayList<>(size);
+            for (long i = outputCount - size; i < outputCount; i++) {
+                lines.add(recentOutput[(int) (i % OUTPUT_BUFFER_LINES)]);
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * 直近の出力の末尾をエラーログに出す（異常終了・起動失敗の原因を調べるため）
+     */
+    private void logRecentOutput() {
+        List<String> lines = getRecentOutput();
+        List<String> tail = lines.subList(Math.max(0, lines.size() - OUTPUT_DUMP_LINES), lines.size());
+        for (String line : tail) {
+            Chat_llm_translation.LOGGER.error("[llama-server:{}] {}", index, line);
+        }
+    }
+
+    /**
+     * このワーカーのURL
+     *
+     * @return URL（例: http://localhost:8081）
+     */
+    public String getUrl() {
+        return "http://localhost:" + port;
+    }
+}
@@ -0,0 +1,152 @@
+package jp.chat_llm_translation.llm;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jp.chat_llm_translation.config.ModConfig;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * テキストのトークン数を数えるクラス
+ * llama-serverの/tokenizeエンドポイントで数えた結果をLRUに保持し、同じテキストを二度問い合わせないようにします
+ *
+ * 翻訳リクエストを組み立てるスレッドを止めないよう、未計測のテキストはその場では見積もりを返し、
+ * /tokenizeへの問い合わせはバックグラウンドで行います（次回以降は正確な値を使用）
+ * /tokenizeがないサーバーや停止中のサーバーでは、しばらく問い合わせをやめて見積もりだけを使います
+ * 問い合わせ先は翻訳と同じBackendPoolから選ぶため、複数のサーバー・ワーカーに分散されます
+ */
+public class TokenCounter {
+    private static final int CACHE_SIZE = 4096;
+
+    /**
+     * 同時に問い合わせる最大テキスト数（あふれた分は見積もりのまま）
+     */
+    private static final int MAX_PENDING = 32;
+
+    /**
+     * 問い合わせに失敗した後、再び問い合わせるまでの時間（ミリ秒）
+     */
+    private static final long FAILURE_BACKOFF_MILLIS = 30_000;
+
+    /**
+     * /tokenizeリクエストのタイムアウト（ミリ秒）
+     */
+    private static final long TOKENIZE_TIMEOUT_MILLIS = 3_000;
+
+    private final HttpClient httpClient;
+    private final ModConfig config;
+    private final BackendPool backendPool;
+
+    private final Map<String, Integer> counts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private volatile long disabledUntil;
+
+    /**
+     * コンストラクタ
+     *
+     * @param backendPool /tokenizeの問い合わせ先を選ぶバックエンドのプール（翻訳と共有）
+     */
+    public TokenCounter(BackendPool backendPool) {
+        this.config = ModConfig.getInstance();
+        this.backendPool = backendPool;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(TOKENIZE_TIMEOUT_MILLIS))
+                .build();
+    }
+
+    /**
+     * テキストのトークン数を取得（ブロックしない）
+     * 計測済みならその値を、未計測なら見積もりを返し、バックグラウンドで計測します
+     *
+     * @param text テキスト
+     * @return トークン数
+     */
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        synchronized (counts) {
+            Integer cached = counts.get(text);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        requestCount(text);
+        return estimate(text);
+    }
+
+    /**
+     * /tokenizeでトークン数を計測してキャッシュに入れる（非同期）
+     */
+    private void requestCount(String text) {
+        if (!config.useServerTokenizer || System.currentTimeMillis() < disabledUntil
+                || pending.size() >= MAX_PENDING || !pending.add(text)) {
+            return;
+        }
+
+        JsonObject requestBody = new JsonObject();
+        requestBody.addProperty("content", text);
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(backendPool.peek().url + "/tokenize"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofMillis(TOKENIZE_TIMEOUT_MILLIS))
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+                .build();
+
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, ex) -> {
+            pending.remove(text);
+            try {
+                if (ex != null || response.statusCode() != 200) {
+                    throw new IllegalStateException(ex != null ? ex.getMessage() : "status " + response.statusCode());
+                }
+                int tokens = JsonParser.parseString(response.body()).getAsJsonObject().getAsJsonArray("tokens").size();
+                synchronized (counts) {
+                    counts.put(text, tokens);
+                }
+            } catch (RuntimeException e) {
+                disabledUntil = System.currentTimeMillis() + FAILURE_BACKOFF_MILLIS;
+                if (config.debugMode) {
+                    System.err.println("[ChatLLM] Tokenize request failed, using estimates: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * テキストのトークン数を見積もる
+     * 日本語・中国語・韓国語は1文字1トークン、それ以外は4文字1トークンとして数えます
+     *
+     * @param text テキスト
+     * @return トークン数の見積もり
+     */
+    public static int estimate(String text) {
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+            if (script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                    || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL) {
+                cjk++;
+            } else {
+                other++;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return cjk + (other + 3) / 4;
+    }
+}
@@ -0,0 +1,280 @@
+package jp.chat_llm_translation.llm;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.config.ModConfig;
+import jp.chat_llm_translation.llm.LLMClient.ChatMessage;
+import jp.chat_llm_translation.llm.TranslationScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 短時間に届いた受信メッセージをまとめて1回のLLMリクエストで翻訳するクラス
+ * batchWindowMsの間（またはbatchMaxSize件に達するまで）メッセージを集め、
+ * 番号付きの複数行プロンプトとして送信することでシステムプロンプトのprefillを共有します
+ *
+ * バッチのコンテキストは、各メッセージの翻訳例を重複を除いてまとめたものと、最も古いメッセージ時点の履歴です
+ */
+public class TranslationBatcher {
+    private final LLMClient llmClient;
+    private final ModConfig config;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 翻訳先言語ごとの待機中メッセージ
+     */
+    private final Map<String, List<PendingTranslation>> pending;
+
+    /**
+     * バッチ待ちの翻訳リクエスト
+     */
+    private static class PendingTranslation {
+        final String text;
+        final List<ChatMessage> examples;
+        final List<ChatMessage> history;
+        final List<ChatMessage> contextMessages; // 単独で送信する場合のコンテキスト（翻訳例 + 履歴）
+        final Consumer<String> onPartial;
+        final long deadline;
+        final CompletableFuture<String> future;
+
+        PendingTranslation(String text, List<ChatMessage> examples, List<ChatMessage> history, Consumer<String> onPartial,
+                           long deadline) {
+            this.text = text;
+            this.examples = examples;
+            this.history = history;
+            this.contextMessages = concat(examples, history);
+            this.onPartial = onPartial;
+            this.deadline = deadline;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param llmClient 翻訳に使用するLLMクライアント
+     */
+    public TranslationBatcher(LLMClient llmClient) {
+        this.llmClient = llmClient;
+        this.config = ModConfig.getInstance();
+        this.pending = new HashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-llm-translation-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 翻訳リクエストをバッチに追加
+     *
+     * @param text 翻訳するテキスト
+     * @param examples このメッセージのために選んだ翻訳例のuser/assistantメッセージ
+     * @param history 会話の履歴のメッセージ
+     * @param targetLanguage 翻訳先言語
+     * @param onPartial 翻訳途中の結果を受け取るコールバック（単独で送信された場合のみ使用）
+     * @param deadline 期限（エポックミリ秒、0は期限なし）
+     * @return 翻訳されたテキストのCompletableFuture
+     */
+    public CompletableFuture<String> submit(String text, List<ChatMessage> examples, List<ChatMessage> history,
+                                            String targetLanguage, Consumer<String> onPartial, long deadline) {
+        PendingTranslation translation = new PendingTranslation(text, examples, history, onPartial, deadline);
+        List<PendingTranslation> ready = null;
+
+        synchronized (pending) {
+            List<PendingTranslation> batch = pending.computeIfAbsent(targetLanguage, lang -> new ArrayList<>());
+            batch.add(translation);
+
+            if (batch.size() >= Math.max(1, config.batchMaxSize)) {
+                // 上限に達したら待たずに送信
+                ready = pending.remove(targetLanguage);
+            } else if (batch.size() == 1) {
+                // バッチの最初のメッセージでウィンドウを開始
+                scheduler.schedule(() -> flush(targetLanguage, batch), config.batchWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (ready != null) {
+            dispatch(targetLanguage, ready);
+        }
+        return translation.future;
+    }
+
+    /**
+     * ウィンドウ終了時に待機中のバッチを送信
+     *
+     * @param targetLanguage 翻訳先言語
+     * @param batch ウィンドウを開始したバッチ
+     */
+    private void flush(String targetLanguage, List<PendingTranslation> batch) {
+        synchronized (pending) {
+            // 既に上限到達で送信済みの場合は何もしない
+            if (!pending.remove(targetLanguage, batch)) {
+                return;
+            }
+        }
+        dispatch(targetLanguage, batch);
+    }
+
+    /**
+     * バッチをLLMに送信し、結果を各リクエストに振り分ける
+     *
+     * @param targetLanguage 翻訳先言語
+     * @param batch 送信するバッチ
+     */
+    private void dispatch(String targetLanguage, List<PendingTranslation> batch) {
+        // 1件だけの場合は通常の翻訳（ストリーミング対応）を使用
+        if (batch.size() == 1) {
+            PendingTranslation single = batch.get(0);
+            CompletableFuture<String> translation = single.onPartial != null && config.streamingTranslation
+                    ? llmClient.translateStreamAsync(single.text, single.contextMessages, targetLanguage, single.onPartial,
+                            Priority.INCOMING, single.deadline)
+                    : llmClient.translateAsync(single.text, single.contextMessages, targetLanguage, Priority.INCOMING, single.deadline);
+            translation.whenComplete((translated, ex) -> complete(single, translated, ex));
+            return;
+        }
+
+        List<String> texts = new ArrayList<>(batch.size());
+        // バッチ全体の期限は最も遅い期限（全メッセージが期限切れの場合のみ破棄）
+        long batchDeadline = 0;
+        boolean hasUnboundedDeadline = false;
+        for (PendingTranslation translation : batch) {
+            texts.add(translation.text);
+            if (translation.deadline > 0) {
+                batchDeadline = Math.max(batchDeadline, translation.deadline);
+            } else {
+                hasUnboundedDeadline = true;
+            }
+        }
+        if (hasUnboundedDeadline) {
+            batchDeadline = 0;
+        }
+        // 各メッセージの翻訳例をまとめ、バッチ内で最も古いメッセージ時点の会話と合わせてコンテキストとして共有
+        List<ChatMessage> contextMessages = concat(mergeExamples(batch), batch.get(0).history);
+
+        llmClient.translateBatchAsync(texts, contextMessages, targetLanguage, batchDeadline).whenComplete((results, ex) -> {
+            if (ex == null) {
+                dispatchResults(targetLanguage, batch, results);
+            } else if (isShed(ex)) {
+                // 期限切れ・上限超過で破棄された場合は個別に再送しない
+                batch.forEach(translation -> translation.future.completeExceptionally(ex));
+            } else {
+                if (config.debugMode) {
+                    Chat_llm_translation.LOGGER.warn("[ChatLLM] Batch translation failed, falling back to single requests: {}", ex.getMessage());
+                }
+                dispatchResults(targetLanguage, batch, null);
+            }
+        });
+    }
+
+    /**
+     * バッチ翻訳の結果を各リクエストに振り分ける
+     *
+     * @param targetLanguage 翻訳先言語
+     * @param batch 送信したバッチ
+     * @param results 翻訳結果（失敗した場合はnull）
+     */
+    private void dispatchResults(String targetLanguage, List<PendingTranslation> batch, List<String> results) {
+        if (config.debugMode && results != null) {
+            Chat_llm_translation.LOGGER.info("[ChatLLM] Batched {} messages into one request", batch.size());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PendingTranslation translation = batch.get(i);
+            String translated = results != null ? results.get(i) : null;
+            if (translated != null) {
+                translation.future.complete(translated);
+            } else {
+                // 応答から分割できなかったメッセージは個別に翻訳
+                llmClient.translateAsync(translation.text, translation.contextMessages, targetLanguage, Priority.INCOMING, translation.deadline)
+                        .whenComplete((single, singleEx) -> complete(translation, single, singleEx));
+            }
+        }
+    }
+
+    /**
+     * バッチ内の各メッセージの翻訳例を重複を除いてまとめる（fewShotTokenBudgetを超えない範囲）
+     * 各メッセージの1組目、2組目…の順に取り、どのメッセージの例も入るようにします
+     * プロンプトキャッシュのため、最後に原文の順に並べ直します
+     *
+     * @param batch バッチ
+     * @return 翻訳例のuser/assistantメッセージ
+     */
+    private List<ChatMessage> mergeExamples(List<PendingTranslation> batch) {
+        List<ChatMessage[]> pairs = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int tokens = 0;
+        boolean remaining = true;
+        for (int round = 0; remaining; round++) {
+            remaining = false;
+            for (PendingTranslation translation : batch) {
+                int index = round * 2;
+                if (index + 1 >= translation.examples.size()) {
+                    continue;
+                }
+                remaining = true;
+                ChatMessage user = translation.examples.get(index);
+                ChatMessage assistant = translation.examples.get(index + 1);
+                int cost = TokenCounter.estimate(user.content) + TokenCounter.estimate(assistant.content);
+                if (tokens + cost > config.fewShotTokenBudget || !seen.add(user.content)) {
+                    continue;
+                }
+                tokens += cost;
+                pairs.add(new ChatMessage[]{user, assistant});
+            }
+        }
+
+        pairs.sort(Comparator.comparing((ChatMessage[] pair) -> pair[0].content));
+        List<ChatMessage> examples = new ArrayList<>(pairs.size() * 2);
+        for (ChatMessage[] pair : pairs) {
+            examples.add(pair[0]);
+            examples.add(pair[1]);
+        }
+        return examples;
+    }
+
+    /**
+     * 翻訳例と履歴をつなげる
+     *
+     * @return コンテキストのメッセージ（空の場合はnull）
+     */
+    private static List<ChatMessage> concat(List<ChatMessage> examples, List<ChatMessage> history) {
+        if (examples.isEmpty() && history.isEmpty()) {
+            return null;
+        }
+        List<ChatMessage> messages = new ArrayList<>(examples.size() + history.size());
+        messages.addAll(examples);
+        messages.addAll(history);
+        return messages;
+    }
+
+    /**
+     * 例外がスケジューラによる破棄（期限切れ・上限超過）かどうか
+     */
+    private static boolean isShed(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        return cause instanceof CancellationException;
+    }
+
+    /**
+     * 翻訳結果をリクエストのFutureに反映
+     */
+    private void complete(PendingTranslation translation, String translated, Throwable ex) {
+        if (ex != null) {
+            translation.future.completeExceptionally(ex);
+        } else {
+            translation.future.complete(translated);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package jp.chat_llm_translation.llm;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.config.ModConfig;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 翻訳リクエストを優先度別のレーンで実行するスケジューラ
+ * 送信メッセージを最優先に、手動翻訳、受信メッセージ、入力中の先読みの順で処理します
+ * 同時実行数はllama-serverのスロット数の合計（バックエンドごとの同時実行数の合計）に制限されます
+ *
+ * 受信メッセージのレーンは上限付きで、期限（deadline）を過ぎたタスクは
+ * LLMに送信せずに破棄します（破棄されたタスクはCancellationExceptionで完了）
+ */
+public class TranslationScheduler {
+    /**
+     * 翻訳リクエストの優先度（宣言順に優先）
+     */
+    public enum Priority {
+        /** 送信メッセージ（ゲームが結果を待っている） */
+        OUTGOING,
+        /** 手動翻訳 */
+        MANUAL,
+        /** 受信メッセージ（バックグラウンド） */
+        INCOMING,
+        /** 入力中の下書きの先読み翻訳（空いているときだけ実行） */
+        SPECULATIVE
+    }
+
+    /**
+     * キューに積まれた翻訳タスク
+     */
+    private static class Task<T> {
+        final Callable<T> work;
+        final CompletableFuture<T> future;
+        final long deadline; // 期限（エポックミリ秒、0は期限なし）
+
+        Task(Callable<T> work, long deadline) {
+            this.work = work;
+            this.future = new CompletableFuture<>();
+            this.deadline = deadline;
+        }
+
+        boolean isExpired(long now) {
+            return deadline > 0 && now > deadline;
+        }
+
+        void shed(String reason) {
+            future.completeExceptionally(new CancellationException(reason));
+        }
+
+        void run() {
+            // 実行前にキャンセルされたタスクは処理しない
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(work.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private final ModConfig config;
+    private final Map<Priority, ArrayDeque<Task<?>>> lanes;
+    private final ReentrantLock lock;
+    private final Condition taskAvailable;
+    private volatile int workerCount; // 変更はロック内
+    private int liveWorkers; // 起動済みで終了していないワーカースレッド数（ロック内）
+    private int nextWorkerId;
+
+    // 破棄したタスクの統計
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * コンストラクタ（同時実行数はllama-serverのスロット数）
+     */
+    public TranslationScheduler() {
+        this(ModConfig.getInstance().llamaParallel);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param workerCount 同時実行数（すべてのバックエンドのスロット数の合計）
+     */
+    public TranslationScheduler(int workerCount) {
+        this.config = ModConfig.getInstance();
+        this.lanes = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new ArrayDeque<>());
+        }
+        this.lock = new ReentrantLock();
+        this.taskAvailable = lock.newCondition();
+
+        // llama-serverのスロット数を超えて同時にリクエストしない
+        setWorkerCount(workerCount);
+    }
+
+    /**
+     * 同時実行数（ワーカースレッド数）を変更（バックエンドの数が変わった場合など）
+     * 増やした分はすぐに起動し、減らした分は実行中のタスクを終えたワーカーから終了します
+     *
+     * @param workerCount 同時実行数（1未満の場合は1）
+     */
+    public void setWorkerCount(int workerCount) {
+        lock.lock();
+        try {
+            this.workerCount = Math.max(1, workerCount);
+            while (liveWorkers < this.workerCount) {
+                Thread worker = new Thread(this::workerLoop, "chat-llm-translation-worker-" + nextWorkerId++);
+                worker.setDaemon(true);
+                worker.start();
+                liveWorkers++;
+            }
+            // 待機中のワーカーを起こし、多すぎる分を終了させる
+            taskAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 翻訳タスクを指定した優先度のレーンに追加
+     *
+     * @param priority 優先度
+     * @param work 実行する処理
+     * @return 処理結果のCompletableFuture（キャンセルした場合、未実行なら実行されない）
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Callable<T> work) {
+        return submit(priority, 0, work);
+    }
+
+    /**
+     * 期限付きで翻訳タスクを指定した優先度のレーンに追加
+     * 実行開始時点で期限を過ぎている場合はLLMに送らず破棄します
+     *
+     * @param priority 優先度
+     * @param deadline 期限（エポックミリ秒、0は期限なし）
+     * @param work 実行する処理
+     * @return 処理結果のCompletableFuture（破棄された場合はCancellationExceptionで完了）
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, long deadline, Callable<T> work) {
+        Task<T> task = new Task<>(work, deadline);
+        Task<?> dropped = null;
+
+        lock.lock();
+        try {
+            ArrayDeque<Task<?>> lane = lanes.get(priority);
+
+            // 受信レーンは上限を超えたらポリシーに従って古いものか新しいものを捨てる
+            if (priority == Priority.INCOMING && config.maxQueuedIncoming > 0 && lane.size() >= config.maxQueuedIncoming) {
+                if ("drop-newest".equalsIgnoreCase(config.incomingQueuePolicy)) {
+                    dropped = task;
+                } else {
+                    dropped = lane.pollFirst();
+                }
+            }
+
+            if (dropped != task) {
+                lane.addLast(task);
+                taskAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // ロック外で完了させる（後続処理をロック内で実行しないため）
+        if (dropped != null) {
+            droppedCount.incrementAndGet();
+            dropped.shed("Translation queue is full");
+        }
+        return task.future;
+    }
+
+    /**
+     * 待機中のタスクをより高い優先度のレーンに移動
+     * 先読みで投入した翻訳が実際に必要になった場合などに使用します
+     *
+     * @param future submitで返されたCompletableFuture
+     * @param priority 移動先の優先度
+     * @return 待機中のタスクを移動した場合true（実行中・完了済み・見つからない場合はfalse）
+     */
+    public boolean promote(CompletableFuture<?> future, Priority priority) {
+        lock.lock();
+        try {
+            for (Map.Entry<Priority, ArrayDeque<Task<?>>> lane : lanes.entrySet()) {
+                if (lane.getKey().compareTo(priority) <= 0) {
+                    continue;
+                }
+                var iterator = lane.getValue().iterator();
+                while (iterator.hasNext()) {
+                    Task<?> task = iterator.next();
+                    if (task.future == future) {
+                        iterator.remove();
+                        lanes.get(priority).addLast(task);
+                        taskAvailable.signal();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * ワーカースレッドの処理ループ
+     */
+    private void workerLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Task<?> task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == null) {
+                return; // 同時実行数を減らしたので終了
+            }
+
+            // 待機中に期限切れになった翻訳は送信しても役に立たないので破棄
+            if (task.isExpired(System.currentTimeMillis())) {
+                expiredCount.incrementAndGet();
+                task.shed("Translation deadline exceeded");
+                continue;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Chat_llm_translation.LOGGER.error("[ChatLLM] Unexpected error in translation worker", t);
+            }
+        }
+    }
+
+    /**
+     * 最も優先度の高いレーンからタスクを取り出す（空の場合は待機）
+     *
+     * @return タスク（同時実行数を減らしてこのワーカーが終了する場合はnull）
+     */
+    private Task<?> take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (liveWorkers > workerCount) {
+                    liveWorkers--;
+                    return null;
+                }
+                for (ArrayDeque<Task<?>> lane : lanes.values()) {
+                    Task<?> task = lane.pollFirst();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+                taskAvailable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 指定した優先度のレーンで待機中のタスク数を取得
+     *
+     * @param priority 優先度
+     * @return 待機中のタスク数
+     */
+    public int getQueuedCount(Priority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 期限切れで破棄したタスク数を取得
+     *
+     * @return 期限切れで破棄したタスク数
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * キューの上限超過で破棄したタスク数を取得
+     *
+     * @return 上限超過で破棄したタスク数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * 同時実行数（ワーカースレッド数）を取得
+     *
+     * @return ワーカースレッド数
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+}
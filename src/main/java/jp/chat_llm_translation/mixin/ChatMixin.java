@@ -8,7 +8,9 @@ import net.minecraft.client.network.ClientPlayNetworkHandler;
 import net.minecraft.text.Text;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.ModifyVariable;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -20,7 +22,31 @@ import java.util.concurrent.TimeoutException;
 public class ChatMixin {
 
     /**
-     * チャットメッセージ送信時に翻訳を実行（タイムアウト付き）
+     * チャットメッセージ送信時に非同期で翻訳を実行（asyncOutgoingSendが有効な場合）
+     * 元の送信をキャンセルし、翻訳完了後に翻訳文を送り直すため、メインスレッドをブロックしません
+     */
+    @Inject(
+            method = "sendChatMessage",
+            at = @At("HEAD"),
+            cancellable = true
+    )
+    private void translateOutgoingMessageAsync(String message, CallbackInfo ci) {
+        ModConfig config = ModConfig.getInstance();
+        ChatHandler handler = Chat_llm_translation.getChatHandler();
+
+        if (!config.asyncOutgoingSend || !shouldTranslate(handler, config, message)) {
+            return;
+        }
+
+        MinecraftClient client = MinecraftClient.getInstance();
+        String playerName = client.player != null ? client.player.getName().getString() : "You";
+
+        ci.cancel();
+        handler.getOutgoingSender().send((ClientPlayNetworkHandler) (Object) this, playerName, message);
+    }
+
+    /**
+     * チャットメッセージ送信時に翻訳を実行（タイムアウト付き、asyncOutgoingSendが無効な場合）
      * メインスレッドのブロックを最小限に抑えるため、タイムアウト時は元のメッセージを送信
      */
     @ModifyVariable(
@@ -32,13 +58,8 @@ public class ChatMixin {
         ModConfig config = ModConfig.getInstance();
         ChatHandler handler = Chat_llm_translation.getChatHandler();
 
-        // 翻訳が無効、または送信翻訳が無効の場合はそのまま返す
-        if (handler == null || !config.translationEnabled || !config.autoTranslateOutgoing) {
-            return message;
-        }
-
-        // 空メッセージやコマンドはスキップ
-        if (message == null || message.isBlank() || message.startsWith("/")) {
+        // 非同期送信が有効な場合はtranslateOutgoingMessageAsyncで処理する
+        if (config.asyncOutgoingSend || !shouldTranslate(handler, config, message)) {
             return message;
         }
 
@@ -57,21 +78,7 @@ public class ChatMixin {
             }
 
             // 翻訳が成功し、元のメッセージと異なる場合は原文表示
-            if (!message.equals(translated)) {
-                // 翻訳結果を自分に表示（原文付き）
-                if (client.player != null) {
-                    String formattedMessage = config.outgoingLabelColor + "[送信翻訳] " +
-                                            config.outgoingTextColor + translated +
-                                            " " + config.outgoingOriginalLabelColor + "(原文: " +
-                                            config.outgoingOriginalTextColor + message +
-                                            config.outgoingOriginalLabelColor + ")";
-
-                    client.player.sendMessage(
-                            Text.literal(formattedMessage),
-                            false
-                    );
-                }
-            }
+            handler.displayOutgoingTranslation(message, translated);
 
             return translated;
         } catch (TimeoutException e) {
@@ -95,4 +102,22 @@ public class ChatMixin {
             return message;
         }
     }
+
+    /**
+     * 送信メッセージを翻訳すべきかどうか
+     */
+    private static boolean shouldTranslate(ChatHandler handler, ModConfig config, String message) {
+        // 翻訳が無効、または送信翻訳が無効の場合は翻訳しない
+        if (handler == null || !config.translationEnabled || !config.autoTranslateOutgoing) {
+            return false;
+        }
+
+        // 翻訳済みのメッセージを送り直している場合は翻訳しない
+        if (handler.getOutgoingSender().isResending()) {
+            return false;
+        }
+
+        // 空メッセージやコマンドはスキップ
+        return message != null && !message.isBlank() && !message.startsWith("/");
+    }
 }
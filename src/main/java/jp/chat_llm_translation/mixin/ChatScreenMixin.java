@@ -0,0 +1,30 @@
+package jp.chat_llm_translation.mixin;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.chat.ChatHandler;
+import net.minecraft.client.gui.screen.ChatScreen;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * チャット入力欄の変更を監視して先読み翻訳を行うMixin
+ */
+@Mixin(ChatScreen.class)
+public class ChatScreenMixin {
+
+    /**
+     * 入力欄の内容が変わるたびに先読み翻訳に通知
+     */
+    @Inject(
+            method = "onChatFieldUpdate",
+            at = @At("TAIL")
+    )
+    private void onDraftChanged(String chatText, CallbackInfo ci) {
+        ChatHandler handler = Chat_llm_translation.getChatHandler();
+        if (handler != null) {
+            handler.getPreTranslator().onDraftChanged(chatText);
+        }
+    }
+}
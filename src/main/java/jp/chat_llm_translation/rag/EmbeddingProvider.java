@@ -0,0 +1,46 @@
+package jp.chat_llm_translation.rag;
+
+import java.io.IOException;
+
+/**
+ * テキストの埋め込みベクトルを計算するインターフェース
+ * RAGStorageの意味検索（類似メッセージの検索）に使用します
+ */
+public interface EmbeddingProvider {
+    /**
+     * テキストの埋め込みベクトルを計算
+     *
+     * @param text 対象のテキスト
+     * @return L2正規化済みの埋め込みベクトル
+     * @throws IOException 計算に失敗した場合
+     */
+    float[] embed(String text) throws IOException;
+
+    /**
+     * 埋め込みの計算方法の識別子
+     * 保存した埋め込みと一緒に記録し、計算方法が変わった埋め込みを読み込み時に計算し直すために使用します
+     *
+     * @return 識別子
+     */
+    String id();
+
+    /**
+     * ベクトルをL2正規化（内積がコサイン類似度になるようにする）
+     *
+     * @param vector 対象のベクトル（直接書き換えます）
+     * @return 正規化したベクトル
+     */
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        if (norm > 0) {
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+}
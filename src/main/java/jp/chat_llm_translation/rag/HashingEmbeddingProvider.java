@@ -0,0 +1,41 @@
+package jp.chat_llm_translation.rag;
+
+/**
+ * 文字n-gramのハッシュによる簡易埋め込み
+ * llama-serverを使わずに動作するローカル実装で、テストやオフライン時に使用します
+ * 表記ゆれ（"thx!!" と "thx!"）程度の近さは捉えられますが、意味的な類似は扱えません
+ */
+public class HashingEmbeddingProvider implements EmbeddingProvider {
+    private final int dimension;
+
+    /**
+     * コンストラクタ
+     *
+     * @param dimension ベクトルの次元数
+     */
+    public HashingEmbeddingProvider(int dimension) {
+        this.dimension = dimension;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[dimension];
+        String normalized = " " + text.toLowerCase().trim() + " ";
+
+        // 文字の2-gramと3-gramを次元にハッシュして数える
+        for (int n = 2; n <= 3; n++) {
+            for (int i = 0; i + n <= normalized.length(); i++) {
+                int hash = normalized.substring(i, i + n).hashCode();
+                int index = Math.floorMod(hash, dimension);
+                // 符号もハッシュから決めて衝突の偏りを打ち消す
+                vector[index] += ((hash >>> 31) == 0) ? 1.0f : -1.0f;
+            }
+        }
+        return EmbeddingProvider.normalize(vector);
+    }
+
+    @Override
+    public String id() {
+        return "hashing-" + dimension;
+    }
+}
@@ -0,0 +1,356 @@
+package jp.chat_llm_translation.rag;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 埋め込みベクトルの近傍検索インデックス（HNSW: Hierarchical Navigable Small World）
+ * 階層化した近傍グラフを上の層から貪欲に辿ることで、全件比較せずに近いベクトルを探します
+ * ベクトルはL2正規化済みとし、類似度は内積（コサイン類似度）で計算します
+ * ベクトルの次元数は最初に追加したベクトルで決まり、異なる次元数のベクトルは追加・検索できません
+ *
+ * 削除は墓標方式で、削除済みのノードは探索の経路としては使いますが結果には含めません
+ * 削除済みのノードが生きているノードより多くなったらグラフを作り直します
+ */
+public class HnswIndex {
+    /** 各層で1ノードが持つ近傍の数 */
+    private static final int M = 16;
+    /** 最下層で1ノードが持つ近傍の数 */
+    private static final int M0 = M * 2;
+    /** 構築時の探索幅 */
+    private static final int EF_CONSTRUCTION = 100;
+    /** 作り直しを検討する削除済みノードの最小数 */
+    private static final int MIN_DELETED_FOR_REBUILD = 64;
+
+    /**
+     * 検索結果
+     */
+    public static class SearchResult {
+        public final String key;
+        public final double similarity;
+
+        SearchResult(String key, double similarity) {
+            this.key = key;
+            this.similarity = similarity;
+        }
+    }
+
+    /**
+     * グラフのノード
+     */
+    private static class Node {
+        final String key;
+        final float[] vector;
+        final List<List<Node>> neighbors; // 層ごとの近傍
+        boolean deleted;
+
+        Node(String key, float[] vector, int level) {
+            this.key = key;
+            this.vector = vector;
+            this.neighbors = new ArrayList<>(level + 1);
+            for (int i = 0; i <= level; i++) {
+                neighbors.add(new ArrayList<>(i == 0 ? M0 : M));
+            }
+        }
+
+        int level() {
+            return neighbors.size() - 1;
+        }
+    }
+
+    /**
+     * 探索中の候補（ノードとクエリとの類似度）
+     */
+    private record Candidate(Node node, double similarity) {
+    }
+
+    private static final Comparator<Candidate> BY_SIMILARITY = Comparator.comparingDouble(Candidate::similarity);
+
+    private final double levelMultiplier = 1.0 / Math.log(M);
+    private final Random random = new Random(42);
+    private final Map<String, Node> nodes = new HashMap<>();
+    private Node entryPoint;
+    private int deletedCount;
+    private int dimension; // ベクトルの次元数（空の間は0）
+
+    /**
+     * ベクトルを追加（同じキーが既にある場合は置き換え）
+     *
+     * @param key エントリのキー
+     * @param vector L2正規化済みのベクトル
+     * @throws IllegalArgumentException インデックスのベクトルと次元数が異なる場合
+     */
+    public synchronized void add(String key, float[] vector) {
+        if (nodes.isEmpty()) {
+            // 削除済みのノードしかなければ作り直し、次元数も追加するベクトルに合わせる
+            clear();
+            dimension = vector.length;
+        }
+        checkDimension(vector);
+        remove(key);
+        insert(new Node(key, vector, randomLevel()));
+    }
+
+    /**
+     * ベクトルを削除
+     *
+     * @param key エントリのキー
+     */
+    public synchronized void remove(String key) {
+        Node node = nodes.remove(key);
+        if (node == null) {
+            return;
+        }
+        node.deleted = true;
+        deletedCount++;
+
+        if (deletedCount >= MIN_DELETED_FOR_REBUILD && deletedCount > nodes.size()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * 全てのベクトルを削除
+     */
+    public synchronized void clear() {
+        nodes.clear();
+        entryPoint = null;
+        deletedCount = 0;
+        dimension = 0;
+    }
+
+    /**
+     * インデックスに含まれるキーかどうか
+     *
+     * @param key エントリのキー
+     * @return 含まれる場合true
+     */
+    public synchronized boolean contains(String key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * 登録されているベクトルを取得
+     *
+     * @param key エントリのキー
+     * @return ベクトル、含まれない場合はnull
+     */
+    public synchronized float[] getVector(String key) {
+        Node node = nodes.get(key);
+        return node != null ? node.vector : null;
+    }
+
+    /**
+     * 登録されているベクトル数を取得
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * ベクトルの次元数を取得
+     *
+     * @return 次元数、まだ決まっていない場合は0
+     */
+    public synchronized int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * クエリに近いベクトルを検索
+     *
+     * @param query L2正規化済みのクエリベクトル
+     * @param topK 返す最大件数
+     * @param ef 探索幅（大きいほど正確で遅い、topK以上にする）
+     * @return 類似度の降順の検索結果
+     * @throws IllegalArgumentException インデックスのベクトルと次元数が異なる場合
+     */
+    public synchronized List<SearchResult> search(float[] query, int topK, int ef) {
+        List<SearchResult> results = new ArrayList<>();
+        if (entryPoint == null || nodes.isEmpty()) {
+            return results;
+        }
+        checkDimension(query);
+
+        Candidate current = new Candidate(entryPoint, similarity(query, entryPoint.vector));
+        for (int layer = entryPoint.level(); layer > 0; layer--) {
+            current = greedySearch(query, current, layer);
+        }
+
+        // 削除済みノードを除いてもtopK件残るように探索幅を広げる
+        List<Candidate> found = searchLayer(query, current, Math.max(ef, topK) + Math.min(deletedCount, topK), 0);
+        found.sort(BY_SIMILARITY.reversed());
+        for (Candidate candidate : found) {
+            if (candidate.node.deleted) {
+                continue;
+            }
+            results.add(new SearchResult(candidate.node.key, candidate.similarity));
+            if (results.size() >= topK) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * ノードをグラフに挿入
+     */
+    private void insert(Node node) {
+        nodes.put(node.key, node);
+
+        if (entryPoint == null) {
+            entryPoint = node;
+            return;
+        }
+
+        int level = node.level();
+        int topLevel = entryPoint.level();
+        Candidate current = new Candidate(entryPoint, similarity(node.vector, entryPoint.vector));
+
+        // 新しいノードより上の層は最も近いノードを辿るだけ
+        for (int layer = topLevel; layer > level; layer--) {
+            current = greedySearch(node.vector, current, layer);
+        }
+
+        // 新しいノードが存在する層では近傍を選んで双方向に接続
+        for (int layer = Math.min(level, topLevel); layer >= 0; layer--) {
+            List<Candidate> candidates = searchLayer(node.vector, current, EF_CONSTRUCTION, layer);
+            candidates.sort(BY_SIMILARITY.reversed());
+
+            int maxNeighbors = layer == 0 ? M0 : M;
+            List<Node> neighbors = node.neighbors.get(layer);
+            for (int i = 0; i < candidates.size() && neighbors.size() < M; i++) {
+                neighbors.add(candidates.get(i).node);
+            }
+
+            for (Node neighbor : neighbors) {
+                List<Node> back = neighbor.neighbors.get(layer);
+                back.add(node);
+                if (back.size() > maxNeighbors) {
+                    shrink(neighbor, back, maxNeighbors);
+                }
+            }
+
+            current = candidates.get(0);
+        }
+
+        if (level > topLevel) {
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * 近傍リストを類似度の高い順にmaxNeighbors件に絞る
+     */
+    private void shrink(Node owner, List<Node> neighbors, int maxNeighbors) {
+        neighbors.sort(Comparator.comparingDouble((Node n) -> similarity(owner.vector, n.vector)).reversed());
+        neighbors.subList(maxNeighbors, neighbors.size()).clear();
+    }
+
+    /**
+     * 指定した層で最も近いノードへ貪欲に移動
+     */
+    private Candidate greedySearch(float[] query, Candidate start, int layer) {
+        Candidate best = start;
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (Node neighbor : best.node.neighbors.get(layer)) {
+                double sim = similarity(query, neighbor.vector);
+                if (sim > best.similarity) {
+                    best = new Candidate(neighbor, sim);
+                    improved = true;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 指定した層で探索幅efのビームサーチを行う
+     *
+     * @return 見つかった近いノード（順不同、最大ef件）
+     */
+    private List<Candidate> searchLayer(float[] query, Candidate start, int ef, int layer) {
+        Set<Node> visited = new HashSet<>();
+        visited.add(start.node);
+
+        // 次に展開する候補（類似度の高い順）と、これまでの上位ef件（類似度の低い順）
+        PriorityQueue<Candidate> toVisit = new PriorityQueue<>(BY_SIMILARITY.reversed());
+        PriorityQueue<Candidate> best = new PriorityQueue<>(BY_SIMILARITY);
+        toVisit.add(start);
+        best.add(start);
+
+        while (!toVisit.isEmpty()) {
+            Candidate candidate = toVisit.poll();
+            if (best.size() >= ef && candidate.similarity < best.peek().similarity) {
+                break;
+            }
+
+            for (Node neighbor : candidate.node.neighbors.get(layer)) {
+                if (!visited.add(neighbor)) {
+                    continue;
+                }
+                double sim = similarity(query, neighbor.vector);
+                if (best.size() < ef || sim > best.peek().similarity) {
+                    Candidate next = new Candidate(neighbor, sim);
+                    toVisit.add(next);
+                    best.add(next);
+                    if (best.size() > ef) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+
+        return new ArrayList<>(best);
+    }
+
+    /**
+     * ベクトルの次元数がインデックスと一致するか確認
+     * 次元数の異なるベクトル（別のモデルの埋め込み）同士の類似度には意味がないため、比較せずに拒否します
+     */
+    private void checkDimension(float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Vector dimension " + vector.length + " does not match index dimension " + dimension);
+        }
+    }
+
+    /**
+     * 削除済みノードを取り除いてグラフを作り直す
+     */
+    private void rebuild() {
+        List<Node> live = new ArrayList<>(nodes.values());
+        nodes.clear();
+        entryPoint = null;
+        deletedCount = 0;
+        for (Node node : live) {
+            insert(new Node(node.key, node.vector, node.level()));
+        }
+    }
+
+    /**
+     * ノードの層をランダムに決める（上の層ほど指数的に少なくなる）
+     */
+    private int randomLevel() {
+        return (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    }
+
+    /**
+     * 類似度（正規化済みベクトルの内積）
+     */
+    private static double similarity(float[] a, float[] b) {
+        double dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+}
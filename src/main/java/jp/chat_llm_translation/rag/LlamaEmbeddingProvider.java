@@ -0,0 +1,119 @@
+package jp.chat_llm_translation.rag;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jp.chat_llm_translation.config.ModConfig;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * llama-serverの/embeddingエンドポイントで埋め込みを計算するプロバイダ
+ * --embeddings付きのllama-serverはチャット補完を受け付けないため、翻訳用とは別に起動したサーバー（embeddingServerUrl）を使用します
+ */
+public class LlamaEmbeddingProvider implements EmbeddingProvider {
+    private static final int CACHE_SIZE = 256;
+
+    private final HttpClient httpClient;
+    private final ModConfig config;
+
+    /**
+     * 直近に計算した埋め込み（検索時と登録時で同じテキストを二度計算しないため）
+     */
+    private final Map<String, float[]> recent = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * コンストラクタ
+     */
+    public LlamaEmbeddingProvider() {
+        this.config = ModConfig.getInstance();
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(config.requestTimeout))
+                .build();
+    }
+
+    @Override
+    public float[] embed(String text) throws IOException {
+        synchronized (recent) {
+            float[] cached = recent.get(text);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        JsonObject requestBody = new JsonObject();
+        requestBody.addProperty("content", text);
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(config.embeddingServerUrl + "/embedding"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofMillis(config.requestTimeout))
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+                .build();
+
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Embedding request interrupted", e);
+        }
+
+        if (response.statusCode() != 200) {
+            throw new IOException("Embedding server returned status " + response.statusCode() + ": " + response.body());
+        }
+
+        float[] vector = EmbeddingProvider.normalize(parseEmbedding(JsonParser.parseString(response.body())));
+        synchronized (recent) {
+            recent.put(text, vector);
+        }
+        return vector;
+    }
+
+    @Override
+    public String id() {
+        // サーバーで読み込んでいるモデルは分からないため、接続先で区別する（同じ接続先でのモデルの変更は次元数の違いで検出）
+        return "llama@" + config.embeddingServerUrl;
+    }
+
+    /**
+     * レスポンスから埋め込みを取り出す
+     * llama-serverのバージョンにより {"embedding":[...]} と
+     * [{"index":0,"embedding":[[...]]}] の両方の形式があるため、最初の数値配列を探します
+     */
+    private static float[] parseEmbedding(JsonElement element) throws IOException {
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            if (object.has("embedding")) {
+                return parseEmbedding(object.get("embedding"));
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            if (!array.isEmpty()) {
+                JsonElement first = array.get(0);
+                if (first.isJsonPrimitive()) {
+                    float[] vector = new float[array.size()];
+                    for (int i = 0; i < vector.length; i++) {
+                        vector[i] = array.get(i).getAsFloat();
+                    }
+                    return vector;
+                }
+                return parseEmbedding(first);
+            }
+        }
+        throw new IOException("Invalid embedding response format");
+    }
+}
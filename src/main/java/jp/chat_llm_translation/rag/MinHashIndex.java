@@ -0,0 +1,140 @@
+package jp.chat_llm_translation.rag;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * MinHashの署名とLSH（Locality Sensitive Hashing）のバケットによるあいまい検索インデックス
+ * トークン集合のJaccard係数が高いエントリを、全件比較せずに候補として取り出します
+ *
+ * 署名をBANDS個の帯に分け、どれか1つの帯が一致したエントリを候補とします
+ * Jaccard係数0.8のエントリが候補になる確率は約99.9%、0.3では約12%です
+ *
+ * スレッドセーフではありません（RAGStorageのロック内で使用します）
+ */
+public class MinHashIndex {
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final int NUM_HASHES = BANDS * ROWS;
+    private static final int[] SEEDS = new Random(0x5EED).ints(NUM_HASHES).toArray();
+
+    private final Map<String, int[]> signatures = new HashMap<>();
+    private final Map<Long, Set<String>> buckets = new HashMap<>();
+
+    /**
+     * エントリを追加（同じキーが既にある場合は置き換え）
+     *
+     * @param key エントリのキー
+     * @param tokens エントリのトークン
+     */
+    public void add(String key, Set<String> tokens) {
+        remove(key);
+        if (tokens.isEmpty()) {
+            return;
+        }
+
+        int[] signature = signature(tokens);
+        signatures.put(key, signature);
+        for (int band = 0; band < BANDS; band++) {
+            buckets.computeIfAbsent(bucketKey(signature, band), k -> new HashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * エントリを削除
+     *
+     * @param key エントリのキー
+     */
+    public void remove(String key) {
+        int[] signature = signatures.remove(key);
+        if (signature == null) {
+            return;
+        }
+        for (int band = 0; band < BANDS; band++) {
+            long bucketKey = bucketKey(signature, band);
+            Set<String> keys = buckets.get(bucketKey);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    buckets.remove(bucketKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * 全てのエントリを削除
+     */
+    public void clear() {
+        signatures.clear();
+        buckets.clear();
+    }
+
+    /**
+     * クエリと似ている可能性が高いエントリのキーを取得
+     * 候補にはJaccard係数が低いものも含まれるため、呼び出し側で実際の類似度を確認してください
+     *
+     * @param tokens クエリのトークン
+     * @return 候補のキー
+     */
+    public Set<String> candidates(Set<String> tokens) {
+        Set<String> result = new HashSet<>();
+        if (tokens.isEmpty() || signatures.isEmpty()) {
+            return result;
+        }
+
+        int[] signature = signature(tokens);
+        for (int band = 0; band < BANDS; band++) {
+            Set<String> keys = buckets.get(bucketKey(signature, band));
+            if (keys != null) {
+                result.addAll(keys);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * トークン集合のMinHash署名を計算
+     */
+    private static int[] signature(Set<String> tokens) {
+        int[] signature = new int[NUM_HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (String token : tokens) {
+            int hash = token.hashCode();
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int value = mix(hash ^ SEEDS[i]);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * 帯ごとのバケットのキー（帯の番号と帯内の署名のハッシュ）
+     */
+    private static long bucketKey(int[] signature, int band) {
+        int hash = 1;
+        for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+            hash = 31 * hash + signature[i];
+        }
+        return ((long) band << 32) | (hash & 0xFFFFFFFFL);
+    }
+
+    /**
+     * ハッシュ値の撹拌（MurmurHash3のfinalizer）
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,72 @@
+package jp.chat_llm_translation.rag;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * CJK（漢字・ひらがな・カタカナ・ハングル）を文字n-gramに分割するトークナイザ
+ * 空白で区切らない言語でも部分的に一致する文の類似度を計算できます
+ * それ以外の文字は従来どおり空白区切りの単語として扱います
+ */
+public class NGramTokenizer implements Tokenizer {
+    @Override
+    public Set<String> tokenize(String text) {
+        Set<String> tokens = new HashSet<>();
+        for (String word : text.toLowerCase().split("\\s+")) {
+            tokenizeWord(word, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * 単語をCJKの部分とそれ以外の部分に分けてトークンを追加
+     */
+    private void tokenizeWord(String word, Set<String> tokens) {
+        int start = 0;
+        while (start < word.length()) {
+            boolean cjk = isCjk(word.codePointAt(start));
+            int end = start;
+            while (end < word.length() && isCjk(word.codePointAt(end)) == cjk) {
+                end += Character.charCount(word.codePointAt(end));
+            }
+
+            String run = word.substring(start, end);
+            if (cjk) {
+                addNGrams(run, tokens);
+            } else if (run.length() > 1) {
+                tokens.add(run); // 1文字の単語は除外
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * CJKの文字列から文字2-gramと3-gramを追加（1文字だけの場合はその文字）
+     */
+    private void addNGrams(String run, Set<String> tokens) {
+        int[] codePoints = run.codePoints().toArray();
+        if (codePoints.length == 1) {
+            tokens.add(run);
+            return;
+        }
+        for (int n = 2; n <= 3; n++) {
+            for (int i = 0; i + n <= codePoints.length; i++) {
+                tokens.add(new String(codePoints, i, n));
+            }
+        }
+    }
+
+    /**
+     * CJKの文字かどうか（長音記号「ー」を含む）
+     */
+    private static boolean isCjk(int codePoint) {
+        if (codePoint == 'ー') {
+            return true;
+        }
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,443 @@
+package jp.chat_llm_translation.rag;
+
+import jp.chat_llm_translation.rag.RAGStorage.RAGEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * RAGエントリのバイナリ形式のスナップショット
+ * MappedByteBufferで読み込み、エントリは参照されたときに初めてデコードします
+ *
+ * ファイル構成:
+ * <pre>
+ * [レコード]...      各エントリ
+ * [インデックス]     slotCount個のlong（レコードのオフセット、空きは-1）、キーのハッシュによるオープンアドレス法
+ * [フッター 32バイト] magic, version, entryCount, slotCount, indexOffset(long), reserved(long)
+ * </pre>
+ * レコード: timestamp(long, エポックミリ秒), useCount(int), key, originalText, translatedText, context,
+ * embeddingModel, embeddingLength(int) + float[embeddingLength]
+ * 文字列はバイト長(int、nullは-1)とUTF-8のバイト列です
+ * バージョン1のファイルにはembeddingModelがありません（埋め込みは計算したプロバイダが不明なものとして読み込みます）
+ *
+ * フッターは最後に書くため、書き込み途中のファイルはフッターの検証で弾かれます
+ * 読み込みは絶対位置指定のみで行うので、複数スレッドから同時に読み込めます
+ */
+public final class RAGBinaryFile {
+    private static final int MAGIC = 0x434C5247; // "CLRG"
+    private static final int VERSION = 2;
+    private static final int FOOTER_SIZE = 32;
+    private static final long EMPTY_SLOT = -1L;
+
+    // レコード内の固定長フィールドの位置
+    private static final int USE_COUNT_OFFSET = Long.BYTES;
+    private static final int KEY_OFFSET = USE_COUNT_OFFSET + Integer.BYTES;
+
+    /**
+     * レコードを順に受け取るコールバック
+     */
+    public interface RecordVisitor {
+        /**
+         * @param key エントリのキー
+         * @param offset レコードのオフセット（このファイルのアクセサに渡す）
+         */
+        void visit(String key, int offset);
+    }
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int entryCount;
+    private final int slotCount;
+    private final int indexOffset;
+    private final int version;
+
+    private RAGBinaryFile(Path path, MappedByteBuffer buffer, int entryCount, int slotCount, int indexOffset, int version) {
+        this.path = path;
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+        this.slotCount = slotCount;
+        this.indexOffset = indexOffset;
+        this.version = version;
+    }
+
+    /**
+     * バイナリ形式のファイルを開く
+     *
+     * @param path ファイルのパス
+     * @return 開いたファイル
+     * @throws IOException 読み込みに失敗した場合、または形式が不正な場合
+     */
+    public static RAGBinaryFile open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid RAG binary file size: " + size);
+            }
+            // マッピングはチャネルを閉じても有効
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        int footer = buffer.capacity() - FOOTER_SIZE;
+        if (buffer.getInt(footer) != MAGIC) {
+            throw new IOException("Not a RAG binary file: " + path);
+        }
+        int version = buffer.getInt(footer + 4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported RAG binary file version: " + version);
+        }
+        int entryCount = buffer.getInt(footer + 8);
+        int slotCount = buffer.getInt(footer + 12);
+        long indexOffset = buffer.getLong(footer + 16);
+        if (entryCount < 0 || slotCount <= 0 || Integer.bitCount(slotCount) != 1
+                || indexOffset < 0 || indexOffset + (long) slotCount * Long.BYTES != footer) {
+            throw new IOException("Corrupt RAG binary file footer: " + path);
+        }
+
+        return new RAGBinaryFile(path, buffer, entryCount, slotCount, (int) indexOffset, version);
+    }
+
+    /**
+     * エントリをバイナリ形式で書き込む
+     * 一時ファイルに書いてから置き換えるため、書き込み途中で失敗しても既存のファイルは壊れません
+     *
+     * @param path 書き込み先のパス
+     * @param entries キーとエントリ
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public static void write(Path path, Map<String, RAGEntry> entries) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        // 負荷率50%以下になる2のべき乗のスロット数
+        int slotCount = Integer.highestOneBit(Math.max(1, entries.size()) * 2 - 1) << 1;
+        long[] slots = new long[slotCount];
+        Arrays.fill(slots, EMPTY_SLOT);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            for (Map.Entry<String, RAGEntry> mapEntry : entries.entrySet()) {
+                String key = mapEntry.getKey();
+                RAGEntry entry = mapEntry.getValue();
+
+                int slot = key.hashCode() & (slotCount - 1);
+                while (slots[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) & (slotCount - 1);
+                }
+                slots[slot] = out.size();
+
+                out.writeLong(entry.timestamp != null ? entry.timestamp.toEpochMilli() : 0L);
+                out.writeInt(entry.useCount);
+                writeString(out, key);
+                writeString(out, entry.originalText);
+                writeString(out, entry.translatedText);
+                writeString(out, entry.context);
+                float[] embedding = entry.embedding;
+                writeString(out, embedding != null ? entry.embeddingModel : null);
+                out.writeInt(embedding != null ? embedding.length : 0);
+                if (embedding != null) {
+                    for (float value : embedding) {
+                        out.writeFloat(value);
+                    }
+                }
+            }
+
+            long indexOffset = out.size();
+            for (long slot : slots) {
+                out.writeLong(slot);
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            out.writeInt(slotCount);
+            out.writeLong(indexOffset);
+            out.writeLong(0L);
+        }
+
+        try {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * JSON形式のストレージファイルに対応するバイナリ形式のファイルのパス
+     * 世代ごとに別のファイルにするのは、マップ中のファイルを置き換えられない環境（Windows）があるため
+     *
+     * @param jsonPath JSON形式のストレージファイルのパス（例: rag.json）
+     * @param generation 世代番号
+     * @return バイナリ形式のファイルのパス（例: rag-3.bin）
+     */
+    public static Path generationPath(Path jsonPath, long generation) {
+        return jsonPath.resolveSibling(baseName(jsonPath) + "-" + generation + ".bin");
+    }
+
+    /**
+     * JSON形式のストレージファイルに対応するバイナリ形式のファイルを世代の古い順に取得
+     *
+     * @param jsonPath JSON形式のストレージファイルのパス
+     * @return バイナリ形式のファイルのリスト
+     */
+    public static List<Path> listGenerations(Path jsonPath) {
+        Path directory = jsonPath.toAbsolutePath().getParent();
+        String prefix = baseName(jsonPath) + "-";
+        List<Path> generations = new ArrayList<>();
+        if (directory == null || !Files.isDirectory(directory)) {
+            return generations;
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> generationOf(file, prefix) >= 0).forEach(generations::add);
+        } catch (IOException e) {
+            return generations;
+        }
+        generations.sort(Comparator.comparingLong(file -> generationOf(file, prefix)));
+        return generations;
+    }
+
+    /**
+     * 次に書き込む世代番号
+     *
+     * @param jsonPath JSON形式のストレージファイルのパス
+     * @return 既存の最新世代の次の番号
+     */
+    public static long nextGeneration(Path jsonPath) {
+        List<Path> generations = listGenerations(jsonPath);
+        if (generations.isEmpty()) {
+            return 1;
+        }
+        return generationOf(generations.get(generations.size() - 1), baseName(jsonPath) + "-") + 1;
+    }
+
+    private static String baseName(Path jsonPath) {
+        String name = jsonPath.getFileName().toString();
+        return name.endsWith(".json") ? name.substring(0, name.length() - ".json".length()) : name;
+    }
+
+    private static long generationOf(Path file, String prefix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(".bin")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - ".bin".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * ファイルのパスを取得
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * エントリ数を取得
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * キーのレコードのオフセットを検索
+     *
+     * @param key エントリのキー
+     * @return レコードのオフセット、存在しない場合は-1
+     */
+    public int find(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = key.hashCode() & (slotCount - 1);
+        for (int probe = 0; probe < slotCount; probe++) {
+            long offset = buffer.getLong(indexOffset + slot * Long.BYTES);
+            if (offset == EMPTY_SLOT) {
+                return -1;
+            }
+            if (keyEquals((int) offset + KEY_OFFSET, keyBytes)) {
+                return (int) offset;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * キーのエントリが存在するか
+     *
+     * @param key エントリのキー
+     * @return 存在する場合true
+     */
+    public boolean contains(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * キーのエントリをデコードして取得
+     *
+     * @param key エントリのキー
+     * @return エントリ、存在しない場合はnull
+     */
+    public RAGEntry get(String key) {
+        int offset = find(key);
+        return offset >= 0 ? decode(offset) : null;
+    }
+
+    /**
+     * 全てのレコードのキーとオフセットを順に通知（エントリ本体はデコードしない）
+     *
+     * @param visitor コールバック
+     */
+    public void forEach(RecordVisitor visitor) {
+        int offset = 0;
+        for (int i = 0; i < entryCount; i++) {
+            String key = readString(offset + KEY_OFFSET);
+            visitor.visit(key, offset);
+
+            // key, originalText, translatedText, context, embeddingModel, embedding を読み飛ばす
+            int position = embeddingPosition(offset);
+            offset = position + Integer.BYTES + buffer.getInt(position) * Float.BYTES;
+        }
+    }
+
+    /**
+     * レコードの最終使用時刻を取得
+     */
+    public long timestampMillis(int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * レコードの使用回数を取得
+     */
+    public int useCount(int offset) {
+        return buffer.getInt(offset + USE_COUNT_OFFSET);
+    }
+
+    /**
+     * レコードの埋め込みを取得
+     *
+     * @return 埋め込み、存在しない場合はnull
+     */
+    public float[] embedding(int offset) {
+        return readEmbedding(embeddingPosition(offset));
+    }
+
+    /**
+     * レコードの埋め込みを計算したプロバイダの識別子を取得（EmbeddingProvider.id()）
+     *
+     * @return 識別子、埋め込みがない場合やバージョン1のファイルの場合はnull
+     */
+    public String embeddingModel(int offset) {
+        return version >= 2 ? readString(skipStrings(offset, 4)) : null;
+    }
+
+    /**
+     * レコードをエントリにデコード
+     *
+     * @param offset レコードのオフセット
+     * @return デコードしたエントリ
+     */
+    public RAGEntry decode(int offset) {
+        int position = offset + KEY_OFFSET;
+        position += stringSize(position); // キーは読み飛ばす
+        String originalText = readString(position);
+        position += stringSize(position);
+        String translatedText = readString(position);
+        position += stringSize(position);
+        String context = readString(position);
+        position += stringSize(position);
+        String embeddingModel = null;
+        if (version >= 2) {
+            embeddingModel = readString(position);
+            position += stringSize(position);
+        }
+
+        RAGEntry entry = new RAGEntry(originalText, translatedText, context);
+        entry.timestamp = Instant.ofEpochMilli(timestampMillis(offset));
+        entry.useCount = useCount(offset);
+        entry.embedding = readEmbedding(position);
+        entry.embeddingModel = entry.embedding != null ? embeddingModel : null;
+        return entry;
+    }
+
+    /**
+     * レコードの埋め込みの位置（文字列のフィールドの後）
+     */
+    private int embeddingPosition(int offset) {
+        return skipStrings(offset, version >= 2 ? 5 : 4);
+    }
+
+    /**
+     * キーから数えてcount個の文字列のフィールドを読み飛ばした位置
+     */
+    private int skipStrings(int offset, int count) {
+        int position = offset + KEY_OFFSET;
+        for (int field = 0; field < count; field++) {
+            position += stringSize(position);
+        }
+        return position;
+    }
+
+    private float[] readEmbedding(int position) {
+        int length = buffer.getInt(position);
+        if (length <= 0) {
+            return null;
+        }
+        float[] embedding = new float[length];
+        for (int i = 0; i < length; i++) {
+            embedding[i] = buffer.getFloat(position + Integer.BYTES + i * Float.BYTES);
+        }
+        return embedding;
+    }
+
+    private int stringSize(int position) {
+        int length = buffer.getInt(position);
+        return Integer.BYTES + Math.max(0, length);
+    }
+
+    private String readString(int position) {
+        int length = buffer.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(position + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean keyEquals(int position, byte[] keyBytes) {
+        if (buffer.getInt(position) != keyBytes.length) {
+            return false;
+        }
+        ByteBuffer stored = buffer.slice(position + Integer.BYTES, keyBytes.length);
+        return stored.equals(ByteBuffer.wrap(keyBytes));
+    }
+}
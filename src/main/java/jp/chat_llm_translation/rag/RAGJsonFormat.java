@@ -0,0 +1,113 @@
+package jp.chat_llm_translation.rag;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import jp.chat_llm_translation.rag.RAGStorage.RAGEntry;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RAGエントリのJSON形式の読み書き
+ * ゲーム外（RAGMigrationTool）からも使えるよう、FabricLoaderや設定に依存しないクラスにしています
+ */
+final class RAGJsonFormat {
+    /**
+     * スナップショット（rag.json）用
+     */
+    static final Gson GSON = new GsonBuilder()
+            .setPrettyPrinting()
+            .registerTypeAdapter(Instant.class, new InstantTypeAdapter())
+            .create();
+
+    /**
+     * 変更ログ（1行1レコード）用
+     */
+    static final Gson LOG_GSON = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, new InstantTypeAdapter())
+            .create();
+
+    private RAGJsonFormat() {
+    }
+
+    /**
+     * JSON形式のスナップショットを読み込み
+     *
+     * @param path ファイルのパス
+     * @return キーとエントリ（ファイルが空の場合は空）
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static Map<String, RAGEntry> read(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path)) {
+            // ファイルが空でないかチェック
+            reader.mark(1);
+            if (reader.read() == -1) {
+                return new LinkedHashMap<>();
+            }
+            reader.reset();
+
+            Type type = new TypeToken<Map<String, RAGEntry>>(){}.getType();
+            Map<String, RAGEntry> loaded = GSON.fromJson(reader, type);
+            return loaded != null ? loaded : new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * JSON形式のスナップショットを書き込み
+     * 書き込み途中でクラッシュしても既存のスナップショットを壊さないよう、一時ファイルから置き換えます
+     *
+     * @param path ファイルのパス
+     * @param entries キーとエントリ
+     * @throws IOException 書き込みに失敗した場合
+     */
+    static void write(Path path, Map<String, RAGEntry> entries) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempPath)) {
+            GSON.toJson(entries, writer);
+        }
+        try {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Instant用のカスタムTypeAdapter
+     * Java 21でGsonがInstantをシリアライズできない問題を回避
+     */
+    private static class InstantTypeAdapter extends TypeAdapter<Instant> {
+        @Override
+        public void write(JsonWriter out, Instant value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                out.value(value.toString());
+            }
+        }
+
+        @Override
+        public Instant read(JsonReader in) throws IOException {
+            if (in.peek() == com.google.gson.stream.JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String timestamp = in.nextString();
+            return Instant.parse(timestamp);
+        }
+    }
+}
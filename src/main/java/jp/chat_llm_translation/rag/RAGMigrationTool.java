@@ -0,0 +1,89 @@
+package jp.chat_llm_translation.rag;
+
+import jp.chat_llm_translation.rag.RAGStorage.RAGEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * JSON形式のRAGストレージ（rag.json）をバイナリ形式（rag-N.bin）に一括変換するツール
+ * 変換元のファイルは rag.json.bak として残します
+ *
+ * 使い方: java -cp <mod jar> jp.chat_llm_translation.rag.RAGMigrationTool <rag.jsonまたはディレクトリ>...
+ * ディレクトリを指定した場合は、その下の全ての rag.json を変換します
+ * ゲームの実行中は変換しないでください
+ */
+public class RAGMigrationTool {
+    private static final String JSON_FILE_NAME = "rag.json";
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: RAGMigrationTool <rag.json or directory>...");
+            System.exit(2);
+        }
+
+        int failed = 0;
+        for (String arg : args) {
+            for (Path jsonPath : findJsonFiles(Path.of(arg))) {
+                try {
+                    int count = migrate(jsonPath);
+                    System.out.println("[ChatLLM] Migrated " + count + " entries: " + jsonPath);
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                    System.err.println("[ChatLLM] Failed to migrate " + jsonPath + ": " + e.getMessage());
+                }
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * JSON形式のストレージファイルをバイナリ形式に変換
+     * 変換前の変更ログ（rag.json.log）が残っている場合は、ゲームで一度読み込んでから変換してください
+     *
+     * @param jsonPath JSON形式のストレージファイルのパス
+     * @return 変換したエントリ数
+     * @throws IOException 読み込み・書き込みに失敗した場合
+     */
+    public static int migrate(Path jsonPath) throws IOException {
+        Path logPath = jsonPath.resolveSibling(jsonPath.getFileName() + ".log");
+        if (Files.exists(logPath) && Files.size(logPath) > 0) {
+            throw new IOException("Unmerged change log exists: " + logPath);
+        }
+
+        Map<String, RAGEntry> entries = RAGJsonFormat.read(jsonPath);
+        Path binaryPath = RAGBinaryFile.generationPath(jsonPath, RAGBinaryFile.nextGeneration(jsonPath));
+        RAGBinaryFile.write(binaryPath, entries);
+
+        // 書き込んだファイルが読み込めることを確認してから元のファイルを退避
+        RAGBinaryFile written = RAGBinaryFile.open(binaryPath);
+        if (written.size() != entries.size()) {
+            throw new IOException("Entry count mismatch after migration: " + written.size() + " != " + entries.size());
+        }
+        Files.move(jsonPath, jsonPath.resolveSibling(jsonPath.getFileName() + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        return entries.size();
+    }
+
+    /**
+     * 変換対象のファイルを探す
+     */
+    private static List<Path> findJsonFiles(Path path) {
+        List<Path> result = new ArrayList<>();
+        if (Files.isRegularFile(path)) {
+            result.add(path);
+            return result;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.filter(file -> file.getFileName().toString().equals(JSON_FILE_NAME)).forEach(result::add);
+        } catch (IOException e) {
+            System.err.println("[ChatLLM] Failed to scan " + path + ": " + e.getMessage());
+        }
+        return result;
+    }
+}
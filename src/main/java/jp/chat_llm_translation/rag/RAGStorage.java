@@ -1,44 +1,96 @@
 package jp.chat_llm_translation.rag;
 
-import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonWriter;
+import com.google.gson.JsonParseException;
 import jp.chat_llm_translation.config.ModConfig;
 import net.fabricmc.loader.api.FabricLoader;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * RAG (Retrieval-Augmented Generation) ストレージ
  * チャット翻訳のコンテキストとして使用する知識ベースを管理します
+ *
+ * 完全一致の検索と使用回数の記録はロックを取りません（エントリはConcurrentHashMap、使用回数はアトミックに更新）
+ * 転置インデックスなどを読む検索は読み込みロック、エントリの追加・削除は書き込みロックで行います
+ * スナップショットにしかないエントリを初めて参照したときだけ、storageに移すために書き込みロックを取ります
  */
 public class RAGStorage {
-    private static final Gson GSON = new GsonBuilder()
-            .setPrettyPrinting()
-            .registerTypeAdapter(Instant.class, new InstantTypeAdapter())
-            .create();
     private static final Path DEFAULT_STORAGE_PATH = FabricLoader.getInstance()
             .getConfigDir()
             .resolve("chat_llm_translation_rag.json");
 
+    /**
+     * 埋め込みの計算用スレッド（翻訳の完了処理をHTTPリクエストで止めないため）
+     */
+    private static final ExecutorService EMBEDDING_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-llm-translation-embedding");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 変更ログの書き込みとスナップショットへの統合（コンパクション）用スレッド
+     * 翻訳の完了処理をファイルI/Oで止めないため、書き込みはすべてこのスレッドで順番に行います
+     */
+    private static final ExecutorService PERSIST_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-llm-translation-rag-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * コンパクションを行う変更ログの最小レコード数（エントリ数の方が多い場合はエントリ数）
+     */
+    private static final int COMPACTION_MIN_RECORDS = 1000;
+
+    /**
+     * 意味検索で探索する候補数
+     */
+    private static final int SEMANTIC_SEARCH_EF = 64;
+
+    /**
+     * 読み込み時に埋め込みがなかったエントリを補う際の、1回あたりの件数と間隔（ミリ秒、失敗が続くと最大値まで延ばす）
+     * 参加のたびに全件の/embeddingを一度に送り、翻訳中のllama-serverを埋めてしまわないようにします
+     */
+    private static final int EMBEDDING_BACKFILL_BATCH = 8;
+    private static final long EMBEDDING_BACKFILL_INTERVAL_MILLIS = 2_000;
+    private static final long EMBEDDING_BACKFILL_MAX_INTERVAL_MILLIS = 60_000;
+
     private final Path storagePath;
+    private final Path logPath;
 
     /**
      * RAGエントリ
      */
     public static class RAGEntry {
+        private static final AtomicIntegerFieldUpdater<RAGEntry> USE_COUNT =
+                AtomicIntegerFieldUpdater.newUpdater(RAGEntry.class, "useCount");
+
         public String originalText;
-        public String translatedText;
+        public volatile String translatedText;
         public String context; // 追加のコンテキスト情報
-        public Instant timestamp;
-        public int useCount; // 使用回数（人気度）
+        public volatile Instant timestamp;
+        public volatile int useCount; // 使用回数（人気度）
+        public float[] embedding; // 元のテキストの埋め込み（意味検索用、未計算の場合はnull）
+        public String embeddingModel; // 埋め込みを計算したプロバイダの識別子（EmbeddingProvider.id()）
+        private transient Set<String> tokens; // 元のテキストのトークン（検索のたびに分割しないためのキャッシュ）
 
         public RAGEntry(String originalText, String translatedText, String context) {
             this.originalText = originalText;
@@ -48,52 +100,143 @@ public class RAGStorage {
             this.useCount = 0;
         }
 
+        /**
+         * 使用回数をアトミックにインクリメント
+         *
+         * @return インクリメント後の使用回数
+         */
+        int incrementUseCount() {
+            return USE_COUNT.incrementAndGet(this);
+        }
+
+        /**
+         * 保存用のコピーを作成（保存中の変更の影響を受けないようにする）
+         *
+         * @param withEmbedding 埋め込みもコピーするか
+         */
+        RAGEntry copy(boolean withEmbedding) {
+            RAGEntry copy = new RAGEntry(originalText, translatedText, context);
+            copy.timestamp = timestamp;
+            copy.useCount = useCount;
+            copy.embedding = withEmbedding ? embedding : null;
+            copy.embeddingModel = withEmbedding ? embeddingModel : null;
+            return copy;
+        }
+
         /**
          * エントリのスコアを計算（類似度と人気度の組み合わせ）
          *
          * @param query 検索クエリ
+         * @param tokenizer クエリとエントリを分割するトークナイザ
          * @return スコア（高いほど関連性が高い）
          */
-        public double calculateScore(String query) {
-            double similarityScore = calculateSimilarity(query, originalText);
+        public double calculateScore(String query, Tokenizer tokenizer) {
+            double similarityScore = calculateSimilarity(tokenizer.tokenize(query), tokenizer);
             double popularityScore = Math.log(useCount + 1) / 10.0; // 人気度ボーナス
             return similarityScore + popularityScore;
         }
 
         /**
-         * 簡易的な類似度計算（共通単語数ベース）
+         * 共通単語数からエントリのスコアを計算
+         *
+         * @param queryTokenCount クエリのトークン数
+         * @param commonTokenCount クエリとエントリの共通トークン数
+         * @param tokenizer エントリを分割するトークナイザ
+         * @return スコア（高いほど関連性が高い）
          */
-        private double calculateSimilarity(String query, String text) {
-            Set<String> queryWords = tokenize(query.toLowerCase());
-            Set<String> textWords = tokenize(text.toLowerCase());
+        double calculateScore(int queryTokenCount, int commonTokenCount, Tokenizer tokenizer) {
+            double similarityScore = calculateSimilarity(queryTokenCount, getTokens(tokenizer).size(), commonTokenCount);
+            double popularityScore = Math.log(useCount + 1) / 10.0; // 人気度ボーナス
+            return similarityScore + popularityScore;
+        }
 
-            if (queryWords.isEmpty() || textWords.isEmpty()) {
-                return 0.0;
+        /**
+         * クエリのトークンとのJaccard係数を計算
+         *
+         * @param queryTokens クエリのトークン
+         * @param tokenizer エントリを分割するトークナイザ
+         * @return Jaccard係数（0.0〜1.0）
+         */
+        double calculateSimilarity(Set<String> queryTokens, Tokenizer tokenizer) {
+            Set<String> textTokens = getTokens(tokenizer);
+            int common = 0;
+            for (String token : queryTokens) {
+                if (textTokens.contains(token)) {
+                    common++;
+                }
             }
+            return calculateSimilarity(queryTokens.size(), textTokens.size(), common);
+        }
 
-            // 共通単語数を計算
-            Set<String> intersection = new HashSet<>(queryWords);
-            intersection.retainAll(textWords);
-
-            // Jaccard係数を計算
-            Set<String> union = new HashSet<>(queryWords);
-            union.addAll(textWords);
-
-            return (double) intersection.size() / union.size();
+        /**
+         * 簡易的な類似度計算（共通単語数ベースのJaccard係数）
+         */
+        private static double calculateSimilarity(int querySize, int textSize, int common) {
+            if (querySize == 0 || textSize == 0) {
+                return 0.0;
+            }
+            // |A∩B| / |A∪B| = |A∩B| / (|A| + |B| - |A∩B|)
+            return (double) common / (querySize + textSize - common);
         }
 
         /**
-         * テキストをトークンに分割
+         * 元のテキストのトークンを取得（初回のみ分割）
+         * エントリは読み込んだストレージのトークナイザでのみ分割するため、キャッシュはトークナイザごとに持ちません
          */
-        private Set<String> tokenize(String text) {
-            return Arrays.stream(text.split("\\s+"))
-                    .filter(word -> word.length() > 1) // 1文字の単語は除外
-                    .collect(Collectors.toSet());
+        Set<String> getTokens(Tokenizer tokenizer) {
+            if (tokens == null) {
+                tokens = tokenizer.tokenize(originalText);
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * 変更ログのレコード（1行1レコードのJSON）
+     */
+    private static class LogRecord {
+        String op; // "put", "use", "remove", "clear"
+        String key;
+        RAGEntry entry; // putの場合のエントリ（埋め込みは含めない）
+        int useCount; // useの場合の使用回数
+
+        LogRecord(String op, String key) {
+            this.op = op;
+            this.key = key;
         }
     }
 
+    /**
+     * 検索結果の候補（top-K選択用）
+     */
+    private record ScoredEntry(RAGEntry entry, double score) {
+    }
+
     private final Map<String, RAGEntry> storage;
+    private final Map<String, Set<String>> invertedIndex; // トークン → そのトークンを含むエントリのキー
+    private final MinHashIndex fuzzyIndex; // あいまい一致の候補検索用
     private final ModConfig config;
+    private final EmbeddingProvider embeddingProvider;
+    private final Tokenizer tokenizer; // 類似度計算に使用するトークナイザ（設定のragTokenizer）
+    private final HnswIndex semanticIndex;
+    private final SegmentedLru evictionQueue; // 上限を超えたときに削除するエントリの選択用
+
+    // ロック（読み込みロック: 転置インデックスなどを読む検索、書き込みロック: エントリの追加・削除とstorageへの移動）
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // バイナリ形式のスナップショット（エントリは参照時にデコードしてstorageに移す）
+    private volatile RAGBinaryFile baseFile;
+    private final Set<String> shadowedBaseKeys; // baseFileのうちstorageに移したキーと削除したキー
+
+    // 変更ログの状態（logWriterはPERSIST_EXECUTORからのみ参照）
+    private Writer logWriter;
+    private final AtomicInteger logRecordCount = new AtomicInteger();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    // 埋め込みを補う待ちのキー（スナップショットのエントリはstorageに移さず、ファイルから読んで計算する）
+    private final Queue<String> embeddingBackfill = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean backfillScheduled = new AtomicBoolean();
+    private volatile long backfillInterval = EMBEDDING_BACKFILL_INTERVAL_MILLIS;
 
     /**
      * コンストラクタ（デフォルトパス使用）
@@ -109,11 +252,36 @@ public class RAGStorage {
      */
     public RAGStorage(Path storagePath) {
         this.storagePath = storagePath;
+        this.logPath = storagePath.resolveSibling(storagePath.getFileName() + ".log");
         this.config = ModConfig.getInstance();
-        this.storage = new HashMap<>();
+        this.storage = new ConcurrentHashMap<>();
+        this.invertedIndex = new HashMap<>();
+        this.fuzzyIndex = new MinHashIndex();
+        this.embeddingProvider = createEmbeddingProvider(config);
+        this.tokenizer = Tokenizer.fromName(config.ragTokenizer);
+        this.semanticIndex = new HnswIndex();
+        this.evictionQueue = new SegmentedLru();
+        this.shadowedBaseKeys = ConcurrentHashMap.newKeySet();
         load();
     }
 
+    /**
+     * 設定に応じた埋め込みプロバイダを作成
+     */
+    private static EmbeddingProvider createEmbeddingProvider(ModConfig config) {
+        if ("hashing".equalsIgnoreCase(config.embeddingProvider)) {
+            return new HashingEmbeddingProvider(256);
+        }
+        // 翻訳用のllama-serverは埋め込み専用にできないため、専用サーバーがなければ簡易埋め込みを使う
+        if (config.embeddingServerUrl == null || config.embeddingServerUrl.isBlank()) {
+            if (config.semanticMatchEnabled) {
+                System.err.println("[ChatLLM] embeddingServerUrl is not set, using hashing embeddings for semantic match");
+            }
+            return new HashingEmbeddingProvider(256);
+        }
+        return new LlamaEmbeddingProvider();
+    }
+
     /**
      * エントリを追加または更新
      *
@@ -121,7 +289,7 @@ public class RAGStorage {
      * @param translatedText 翻訳されたテキスト
      * @param context コンテキスト情報
      */
-    public synchronized void addOrUpdate(String originalText, String translatedText, String context) {
+    public void addOrUpdate(String originalText, String translatedText, String context) {
         if (!config.ragEnabled) {
             return;
         }
@@ -129,44 +297,102 @@ public class RAGStorage {
         // キーは元のテキストの正規化版
         String key = normalizeKey(originalText);
 
+        lock.writeLock().lock();
+        try {
+            putEntry(key, originalText, translatedText, context);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * エントリを追加または更新（書き込みロック内で呼び出す）
+     */
+    private void putEntry(String key, String originalText, String translatedText, String context) {
         // 既存エントリがあれば更新、なければ新規追加
-        RAGEntry entry = storage.getOrDefault(key, new RAGEntry(originalText, translatedText, context));
+        RAGEntry entry = lookup(key);
+        if (entry == null) {
+            entry = new RAGEntry(originalText, translatedText, context);
+            storage.put(key, entry);
+            indexTokens(key);
+            evictionQueue.add(key, false);
+        } else {
+            evictionQueue.markUsed(key);
+        }
         entry.translatedText = translatedText; // 翻訳を更新
         entry.timestamp = Instant.now(); // タイムスタンプを更新
-        entry.useCount++; // 使用回数をインクリメント
+        entry.incrementUseCount(); // 使用回数をインクリメント
 
-        storage.put(key, entry);
+        LogRecord record = new LogRecord("put", key);
+        record.entry = entry.copy(false);
+        appendLog(record);
 
-        // ストレージサイズの制限
-        if (storage.size() > config.ragMaxEntries) {
-            pruneOldEntries();
+        // 意味検索用の埋め込みをバックグラウンドで計算
+        if (entry.embedding == null) {
+            scheduleEmbedding(key, entry);
         }
 
-        // 定期的に保存（100エントリごと）
-        if (storage.size() % 100 == 0) {
-            save();
-        }
+        // ストレージサイズの制限
+        evictEntries();
     }
 
     /**
      * クエリに基づいて関連するエントリを検索
+     * 転置インデックスでクエリと共通のトークンを持つエントリだけをスコアリングします
      *
      * @param query 検索クエリ
      * @param topK 返す最大エントリ数
      * @return 関連性の高い順にソートされたRAGEntryのリスト
      */
-    public synchronized List<RAGEntry> search(String query, int topK) {
-        if (!config.ragEnabled || storage.isEmpty()) {
+    public List<RAGEntry> search(String query, int topK) {
+        if (!config.ragEnabled || size() == 0 || topK <= 0) {
             return Collections.emptyList();
         }
 
-        return storage.values().stream()
-                .map(entry -> new AbstractMap.SimpleEntry<>(entry, entry.calculateScore(query)))
-                .filter(pair -> pair.getValue() > 0.1) // 低スコアのエントリは除外
-                .sorted((a, b) -> Double.compare(b.getValue(), a.getValue())) // スコアの降順
-                .limit(topK)
-                .map(AbstractMap.SimpleEntry::getKey)
-                .collect(Collectors.toList());
+        Set<String> queryTokens = tokenizer.tokenize(query);
+        PriorityQueue<ScoredEntry> topEntries = new PriorityQueue<>(Comparator.comparingDouble(ScoredEntry::score));
+
+        lock.readLock().lock();
+        try {
+            // 候補ごとにクエリとの共通トークン数を数える
+            Map<String, Integer> commonCounts = new HashMap<>();
+            for (String token : queryTokens) {
+                Set<String> keys = invertedIndex.get(token);
+                if (keys != null) {
+                    for (String key : keys) {
+                        commonCounts.merge(key, 1, Integer::sum);
+                    }
+                }
+            }
+
+            // スコアの低い順のヒープで上位topK件だけを保持（スナップショットのエントリはstorageに移さずに読む）
+            for (Map.Entry<String, Integer> candidate : commonCounts.entrySet()) {
+                RAGEntry entry = peek(candidate.getKey());
+                if (entry == null) {
+                    continue;
+                }
+                double score = entry.calculateScore(queryTokens.size(), candidate.getValue(), tokenizer);
+                if (score <= 0.1) {
+                    continue; // 低スコアのエントリは除外
+                }
+                if (topEntries.size() < topK) {
+                    topEntries.add(new ScoredEntry(entry, score));
+                } else if (score > topEntries.peek().score()) {
+                    topEntries.poll();
+                    topEntries.add(new ScoredEntry(entry, score));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // スコアの降順に並べ替え
+        List<RAGEntry> results = new ArrayList<>(topEntries.size());
+        while (!topEntries.isEmpty()) {
+            results.add(topEntries.poll().entry());
+        }
+        Collections.reverse(results);
+        return results;
     }
 
     /**
@@ -175,34 +401,382 @@ public class RAGStorage {
      * @param originalText 元のテキスト
      * @return マッチするRAGEntry、存在しない場合はnull
      */
-    public synchronized RAGEntry getExactMatch(String originalText) {
+    public RAGEntry getExactMatch(String originalText) {
         String key = normalizeKey(originalText);
+        RAGEntry entry = find(key);
+        if (entry != null) {
+            recordUse(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 表記ゆれ程度の違いしかないエントリを検索（トークンのJaccard係数による、あいまい一致）
+     * MinHashのLSHバケットで候補を絞ってから実際の類似度を確認します
+     *
+     * @param originalText 元のテキスト
+     * @param minSimilarity 一致とみなす最小Jaccard係数
+     * @return 最も類似度の高いRAGEntry、存在しない場合はnull
+     */
+    public RAGEntry getFuzzyMatch(String originalText, double minSimilarity) {
+        if (!config.ragEnabled || size() == 0) {
+            return null;
+        }
+
+        Set<String> queryTokens = tokenizer.tokenize(originalText);
+        String bestKey = null;
+        double bestSimilarity = minSimilarity;
+
+        lock.readLock().lock();
+        try {
+            for (String key : fuzzyIndex.candidates(queryTokens)) {
+                RAGEntry entry = peek(key);
+                if (entry == null) {
+                    continue;
+                }
+                double similarity = entry.calculateSimilarity(queryTokens, tokenizer);
+                if (similarity >= bestSimilarity) {
+                    bestKey = key;
+                    bestSimilarity = similarity;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (bestKey == null) {
+            return null;
+        }
+        RAGEntry best = find(bestKey);
+        if (best != null) {
+            recordUse(bestKey, best);
+        }
+        return best;
+    }
+
+    /**
+     * 意味的に近いエントリを検索（埋め込みの近傍検索）
+     * 埋め込みの計算でHTTPリクエストを行うため、メインスレッド以外から呼び出してください
+     *
+     * @param query 検索クエリ
+     * @param topK 返す最大エントリ数
+     * @param minSimilarity 返すエントリの最小類似度（コサイン類似度）
+     * @return 類似度の高い順のRAGEntryのリスト
+     */
+    public List<RAGEntry> searchSemantic(String query, int topK, double minSimilarity) {
+        if (!config.ragEnabled || !config.semanticMatchEnabled || semanticIndex.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        float[] queryVector;
+        try {
+            queryVector = embeddingProvider.embed(query);
+        } catch (IOException e) {
+            if (config.debugMode) {
+                System.err.println("[ChatLLM] Failed to embed query: " + e.getMessage());
+            }
+            return Collections.emptyList();
+        }
+
+        List<HnswIndex.SearchResult> found;
+        try {
+            found = semanticIndex.search(queryVector, topK, SEMANTIC_SEARCH_EF);
+        } catch (IllegalArgumentException e) {
+            resetSemanticIndex(e.getMessage());
+            return Collections.emptyList();
+        }
+
+        List<RAGEntry> results = new ArrayList<>();
+        for (HnswIndex.SearchResult result : found) {
+            if (result.similarity < minSimilarity) {
+                break;
+            }
+            RAGEntry entry = peek(result.key);
+            if (entry != null) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 意味的にほぼ同じエントリを検索（"thx!!" と "thanks!" のような言い換え）
+     * 埋め込みの計算でHTTPリクエストを行うため、メインスレッド以外から呼び出してください
+     *
+     * @param originalText 元のテキスト
+     * @param minSimilarity 一致とみなす最小類似度（コサイン類似度）
+     * @return マッチするRAGEntry、存在しない場合はnull
+     */
+    public RAGEntry getSemanticMatch(String originalText, double minSimilarity) {
+        List<RAGEntry> results = searchSemantic(originalText, 1, minSimilarity);
+        if (results.isEmpty()) {
+            return null;
+        }
+        String key = normalizeKey(results.get(0).originalText);
+        RAGEntry entry = find(key);
+        if (entry != null) {
+            recordUse(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 使用回数と最終使用時刻のスコアが高い順にエントリを取得（参加時のキャッシュ読み込み用）
+     * スナップショットのエントリは上位に入ったものだけをデコードし、storageには移しません
+     *
+     * @param limit 返す最大エントリ数
+     * @return スコアの高い順のRAGEntryのコピー
+     */
+    public List<RAGEntry> getTopEntries(int limit) {
+        if (limit <= 0 || size() == 0) {
+            return Collections.emptyList();
+        }
+
+        List<RAGEntry> results;
+        lock.readLock().lock();
+        try {
+            // スコアの低い順のヒープで上位limit件のキーだけを保持
+            PriorityQueue<Map.Entry<String, Double>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+            for (Map.Entry<String, RAGEntry> entry : storage.entrySet()) {
+                offerTop(top, limit, entry.getKey(), retentionScore(entry.getValue().useCount, entry.getValue().timestamp.getEpochSecond()));
+            }
+            forEachBaseRecord((key, offset) -> offerTop(top, limit, key,
+                    retentionScore(baseFile.useCount(offset), baseFile.timestampMillis(offset) / 1000)));
+
+            results = new ArrayList<>(top.size());
+            while (!top.isEmpty()) {
+                String key = top.poll().getKey();
+                RAGEntry entry = storage.get(key);
+                results.add(entry != null ? entry.copy(false) : baseFile.get(key));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * 上位limit件を保持するヒープにキーを追加
+     */
+    private static void offerTop(PriorityQueue<Map.Entry<String, Double>> top, int limit, String key, double score) {
+        if (top.size() < limit) {
+            top.add(Map.entry(key, score));
+        } else if (score > top.peek().getValue()) {
+            top.poll();
+            top.add(Map.entry(key, score));
+        }
+    }
+
+    /**
+     * 使用回数と最終使用時刻を組み合わせたスコア（使用回数が同じなら新しい方が高い）
+     *
+     * @param useCount 使用回数
+     * @param epochSecond 最終使用時刻（エポック秒）
+     * @return スコア
+     */
+    private static double retentionScore(int useCount, long epochSecond) {
+        return useCount + epochSecond / 1000000.0;
+    }
+
+    /**
+     * エントリの埋め込みをバックグラウンドで計算してインデックスに登録
+     *
+     * @param key エントリのキー
+     * @param entry 対象のエントリ
+     */
+    private void scheduleEmbedding(String key, RAGEntry entry) {
+        if (!config.semanticMatchEnabled) {
+            return;
+        }
+
+        EMBEDDING_EXECUTOR.execute(() -> {
+            try {
+                float[] vector = embeddingProvider.embed(entry.originalText);
+                lock.readLock().lock();
+                try {
+                    // 計算中に削除・置き換えされたエントリは登録しない（削除は書き込みロック内なので競合しない）
+                    if (storage.get(key) != entry) {
+                        return;
+                    }
+                    entry.embedding = vector;
+                    entry.embeddingModel = embeddingProvider.id();
+                    addToSemanticIndex(key, vector);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            } catch (IOException e) {
+                if (config.debugMode) {
+                    System.err.println("[ChatLLM] Failed to compute embedding: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 上限を超えた分のエントリを削除（Segmented LRUで選んだものから1件ずつ）
+     */
+    private void evictEntries() {
+        while (size() > config.ragMaxEntries) {
+            String key = evictionQueue.evict();
+            if (key == null) {
+                return;
+            }
+            removeData(key);
+            unindexTokens(key);
+            semanticIndex.remove(key);
+            appendLog(new LogRecord("remove", key));
+        }
+    }
+
+    /**
+     * エントリを取得（ロックなし）
+     * スナップショットにしかないエントリを初めて参照したときだけ、書き込みロックを取ってstorageに移します
+     *
+     * @param key エントリのキー
+     * @return エントリ、存在しない場合はnull
+     */
+    private RAGEntry find(String key) {
         RAGEntry entry = storage.get(key);
         if (entry != null) {
-            entry.useCount++; // 使用回数をインクリメント
+            return entry;
+        }
+        RAGBinaryFile base = baseFile;
+        if (base == null || shadowedBaseKeys.contains(key) || !base.contains(key)) {
+            return null;
+        }
+
+        lock.writeLock().lock();
+        try {
+            return lookup(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * エントリを読む（storageには移さない、検索の候補の確認用）
+     *
+     * @param key エントリのキー
+     * @return エントリ（スナップショットのものはデコードしたコピー）、存在しない場合はnull
+     */
+    private RAGEntry peek(String key) {
+        RAGEntry entry = storage.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        RAGBinaryFile base = baseFile;
+        if (base == null || shadowedBaseKeys.contains(key)) {
+            return null;
+        }
+        return base.get(key);
+    }
+
+    /**
+     * エントリを取得（スナップショットにしかない場合はデコードしてstorageに移す、書き込みロック内で呼び出す）
+     *
+     * @param key エントリのキー
+     * @return エントリ、存在しない場合はnull
+     */
+    private RAGEntry lookup(String key) {
+        RAGEntry entry = storage.get(key);
+        if (entry == null && baseFile != null && !shadowedBaseKeys.contains(key)) {
+            entry = baseFile.get(key);
+            if (entry != null) {
+                float[] indexed = semanticIndex.getVector(key);
+                if (indexed != null) {
+                    // 読み込み後に補った・計算し直した埋め込み
+                    entry.embedding = indexed;
+                    entry.embeddingModel = embeddingProvider.id();
+                }
+                storage.put(key, entry);
+                shadowedBaseKeys.add(key);
+            }
         }
         return entry;
     }
 
     /**
-     * 古いエントリを削除（LRU方式）
+     * エントリを削除（スナップショットにあるものは削除済みとして記録）
+     *
+     * @param key エントリのキー
+     */
+    private void removeData(String key) {
+        storage.remove(key);
+        if (baseFile != null && !shadowedBaseKeys.contains(key) && baseFile.contains(key)) {
+            shadowedBaseKeys.add(key);
+        }
+    }
+
+    /**
+     * 全てのエントリを削除（インデックス以外）
      */
-    private void pruneOldEntries() {
-        int targetSize = (int) (config.ragMaxEntries * 0.8); // 80%まで削減
+    private void clearData() {
+        baseFile = null;
+        storage.clear();
+        shadowedBaseKeys.clear();
+    }
+
+    /**
+     * スナップショットにだけあるエントリのキーとオフセットを順に通知
+     */
+    private void forEachBaseRecord(RAGBinaryFile.RecordVisitor visitor) {
+        if (baseFile == null) {
+            return;
+        }
+        Set<String> shadowed = shadowedBaseKeys;
+        baseFile.forEach((key, offset) -> {
+            if (!shadowed.contains(key)) {
+                visitor.visit(key, offset);
+            }
+        });
+    }
 
-        List<Map.Entry<String, RAGEntry>> entries = new ArrayList<>(storage.entrySet());
+    /**
+     * 使用回数をインクリメントして変更ログに記録（ロックなし）
+     */
+    private void recordUse(String key, RAGEntry entry) {
+        entry.incrementUseCount(); // 使用回数をインクリメント
+        evictionQueue.markUsed(key);
 
-        // タイムスタンプと使用回数を考慮してソート
-        entries.sort((a, b) -> {
-            double scoreA = a.getValue().useCount + a.getValue().timestamp.getEpochSecond() / 1000000.0;
-            double scoreB = b.getValue().useCount + b.getValue().timestamp.getEpochSecond() / 1000000.0;
-            return Double.compare(scoreA, scoreB);
+        // 書き込む時点の使用回数を記録する（並行して記録された使用の順序が入れ替わっても回数が戻らない）
+        LogRecord record = new LogRecord("use", key);
+        PERSIST_EXECUTOR.execute(() -> {
+            if (storage.get(key) != entry) {
+                return; // 削除・置き換え済み
+            }
+            record.useCount = entry.useCount;
+            writeLogLine(RAGJsonFormat.LOG_GSON.toJson(record));
         });
+        countLogRecord();
+    }
 
-        // 古いエントリを削除
-        int toRemove = storage.size() - targetSize;
-        for (int i = 0; i < toRemove && i < entries.size(); i++) {
-            storage.remove(entries.get(i).getKey());
+    /**
+     * エントリのトークンを転置インデックスとあいまい一致のインデックスに登録
+     * キーは元のテキストを小文字化・空白を正規化したものなので、元のテキストと同じトークンになります
+     * （スナップショットのエントリをデコードせずに登録するため）
+     */
+    private void indexTokens(String key) {
+        Set<String> tokens = tokenizer.tokenize(key);
+        for (String token : tokens) {
+            invertedIndex.computeIfAbsent(token, t -> new HashSet<>()).add(key);
+        }
+        fuzzyIndex.add(key, tokens);
+    }
+
+    /**
+     * エントリのトークンを転置インデックスとあいまい一致のインデックスから削除
+     */
+    private void unindexTokens(String key) {
+        fuzzyIndex.remove(key);
+        for (String token : tokenizer.tokenize(key)) {
+            Set<String> keys = invertedIndex.get(token);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    invertedIndex.remove(token);
+                }
+            }
         }
     }
 
@@ -214,18 +788,103 @@ public class RAGStorage {
     }
 
     /**
-     * ストレージをファイルに保存
+     * 変更ログにレコードを追加（書き込みロック内で呼び出す）
+     * 書き込みはバックグラウンドで行い、ログが大きくなったらスナップショットに統合します
+     */
+    private void appendLog(LogRecord record) {
+        String line = RAGJsonFormat.LOG_GSON.toJson(record);
+        PERSIST_EXECUTOR.execute(() -> writeLogLine(line));
+        countLogRecord();
+    }
+
+    /**
+     * 変更ログのレコード数を数え、多くなったらコンパクションを予約
      */
-    public synchronized void save() {
+    private void countLogRecord() {
+        if (logRecordCount.incrementAndGet() >= Math.max(COMPACTION_MIN_RECORDS, size())
+                && compactionScheduled.compareAndSet(false, true)) {
+            PERSIST_EXECUTOR.execute(this::compact);
+        }
+    }
+
+    /**
+     * 変更ログに1行追記（PERSIST_EXECUTORで実行）
+     */
+    private void writeLogLine(String line) {
         try {
-            Files.createDirectories(storagePath.getParent());
+            if (logWriter == null) {
+                Files.createDirectories(logPath.getParent());
+                logWriter = Files.newBufferedWriter(logPath, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            logWriter.write(line);
+            logWriter.write('\n');
+            logWriter.flush();
+        } catch (IOException e) {
+            System.err.println("[ChatLLM] Failed to write RAG log: " + e.getMessage());
+        }
+    }
 
-            try (Writer writer = Files.newBufferedWriter(storagePath)) {
-                GSON.toJson(storage, writer);
+    /**
+     * 現在の内容をスナップショットに書き出し、変更ログを空にする（PERSIST_EXECUTORで実行）
+     * スナップショットの取得後に追加されたレコードは新しいログに書かれます
+     * 取得前後のレコードがログに残っても、再生は冪等なので問題ありません
+     */
+    private void compact() {
+        Map<String, RAGEntry> snapshot = new LinkedHashMap<>();
+        RAGBinaryFile base;
+        Set<String> shadowed;
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, RAGEntry> entry : storage.entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue().copy(true));
             }
+            base = baseFile;
+            shadowed = new HashSet<>(shadowedBaseKeys);
+            logRecordCount.set(0);
+            compactionScheduled.set(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // スナップショットは読み込み専用なので、ロックの外でデコードする
+        if (base != null) {
+            base.forEach((key, offset) -> {
+                if (!shadowed.contains(key)) {
+                    RAGEntry decoded = base.decode(offset);
+                    float[] indexed = semanticIndex.getVector(key);
+                    if (indexed != null) {
+                        // 読み込み後に補った・計算し直した埋め込みも保存する
+                        decoded.embedding = indexed;
+                        decoded.embeddingModel = embeddingProvider.id();
+                    }
+                    snapshot.put(key, decoded);
+                }
+            });
+        }
+
+        try {
+            Path written;
+            if (isBinaryFormat()) {
+                // マップ中のファイルは置き換えられない環境があるため、新しい世代のファイルに書く
+                written = RAGBinaryFile.generationPath(storagePath, RAGBinaryFile.nextGeneration(storagePath));
+                RAGBinaryFile.write(written, snapshot);
+            } else {
+                written = storagePath;
+                RAGJsonFormat.write(storagePath, snapshot);
+            }
+
+            // スナップショットに統合したのでログを捨てる
+            if (logWriter != null) {
+                logWriter.close();
+                logWriter = null;
+            }
+            Files.deleteIfExists(logPath);
+
+            deleteStaleSnapshots(written, base);
 
             if (config.debugMode) {
-                System.out.println("[ChatLLM] RAG storage saved: " + storage.size() + " entries to " + storagePath);
+                System.out.println("[ChatLLM] RAG storage saved: " + snapshot.size() + " entries to " + written);
             }
         } catch (IOException e) {
             System.err.println("[ChatLLM] Failed to save RAG storage: " + e.getMessage());
@@ -233,79 +892,383 @@ public class RAGStorage {
     }
 
     /**
-     * ストレージをファイルから読み込み
+     * 書き込んだスナップショット以外の古いスナップショットを削除
+     * 使用中（マップ中）のファイルは残し、次回以降に削除します
      */
-    private void load() {
-        if (!Files.exists(storagePath)) {
-            return;
+    private void deleteStaleSnapshots(Path written, RAGBinaryFile inUse) {
+        List<Path> stale = new ArrayList<>(RAGBinaryFile.listGenerations(storagePath));
+        if (!written.equals(storagePath)) {
+            stale.add(storagePath);
         }
-
-        try (Reader reader = Files.newBufferedReader(storagePath)) {
-            // ファイルが空でないかチェック
-            reader.mark(1);
-            if (reader.read() == -1) {
-                if (config.debugMode) {
-                    System.out.println("[ChatLLM] RAG storage file is empty, starting fresh");
-                }
-                return;
+        for (Path path : stale) {
+            if (path.equals(written) || (inUse != null && path.equals(inUse.getPath()))) {
+                continue;
             }
-            reader.reset();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // 他のプロセスが開いている場合などは次回に削除する
+            }
+        }
+    }
 
-            Type type = new TypeToken<Map<String, RAGEntry>>(){}.getType();
-            Map<String, RAGEntry> loaded = GSON.fromJson(reader, type);
+    /**
+     * バイナリ形式で保存する設定かどうか
+     */
+    private boolean isBinaryFormat() {
+        return "binary".equalsIgnoreCase(config.ragStorageFormat);
+    }
 
-            if (loaded != null) {
-                storage.clear();
-                storage.putAll(loaded);
+    /**
+     * ストレージをファイルに保存（変更ログをスナップショットに統合し、完了まで待機）
+     * このストレージのロックを保持したまま呼び出さないでください
+     */
+    public void save() {
+        try {
+            PERSIST_EXECUTOR.submit(this::compact).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("[ChatLLM] Failed to save RAG storage: " + e.getCause());
+        }
+    }
 
-                if (config.debugMode) {
-                    System.out.println("[ChatLLM] RAG storage loaded: " + storage.size() + " entries");
+    /**
+     * ストレージをファイルから読み込み（スナップショットの後に変更ログを再生）
+     */
+    private void load() {
+        boolean needsMigration = loadSnapshot();
+        replayLog();
+        rebuildIndexes();
+
+        if (config.debugMode && size() > 0) {
+            System.out.println("[ChatLLM] RAG storage loaded: " + size() + " entries");
+        }
+
+        // 設定と異なる形式のスナップショットを読み込んだ場合は設定の形式で書き直す
+        if (needsMigration) {
+            compactionScheduled.set(true);
+            PERSIST_EXECUTOR.execute(this::compact);
+        }
+    }
+
+    /**
+     * スナップショットを読み込み（JSON形式とバイナリ形式のうち新しい方）
+     *
+     * @return 設定と異なる形式のスナップショットを読み込んだ場合true
+     */
+    private boolean loadSnapshot() {
+        RAGBinaryFile binary = openLatestBinary();
+        boolean jsonExists = Files.exists(storagePath);
+
+        try {
+            if (binary != null && (!jsonExists
+                    || !Files.getLastModifiedTime(binary.getPath()).toInstant()
+                            .isBefore(Files.getLastModifiedTime(storagePath).toInstant()))) {
+                if (isBinaryFormat()) {
+                    // エントリは参照されたときにデコードする
+                    baseFile = binary;
+                    return false;
                 }
+                binary.forEach((key, offset) -> storage.put(key, binary.decode(offset)));
+                return true;
+            }
+
+            if (jsonExists) {
+                storage.putAll(RAGJsonFormat.read(storagePath));
+                return isBinaryFormat() && !storage.isEmpty();
             }
         } catch (com.google.gson.JsonSyntaxException e) {
             System.err.println("[ChatLLM] Invalid JSON in RAG storage, starting fresh: " + e.getMessage());
         } catch (IOException e) {
             System.err.println("[ChatLLM] Failed to load RAG storage: " + e.getMessage());
         }
+        return false;
     }
 
     /**
-     * ストレージをクリア
+     * 最新の読み込めるバイナリ形式のスナップショットを開く
+     *
+     * @return 開いたファイル、存在しない場合はnull
      */
-    public synchronized void clear() {
-        storage.clear();
-        save();
+    private RAGBinaryFile openLatestBinary() {
+        List<Path> generations = RAGBinaryFile.listGenerations(storagePath);
+        for (int i = generations.size() - 1; i >= 0; i--) {
+            try {
+                return RAGBinaryFile.open(generations.get(i));
+            } catch (IOException e) {
+                System.err.println("[ChatLLM] Skipping unreadable RAG snapshot " + generations.get(i) + ": " + e.getMessage());
+            }
+        }
+        return null;
     }
 
     /**
-     * ストレージのサイズを取得
+     * スナップショット以降の変更ログを再生
+     * クラッシュで途中までしか書かれなかった行は読み飛ばします
      */
-    public synchronized int size() {
-        return storage.size();
+    private void replayLog() {
+        if (!Files.exists(logPath)) {
+            return;
+        }
+
+        int replayed = 0;
+        try (BufferedReader reader = Files.newBufferedReader(logPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    applyLogRecord(RAGJsonFormat.LOG_GSON.fromJson(line, LogRecord.class));
+                    replayed++;
+                } catch (JsonParseException e) {
+                    if (config.debugMode) {
+                        System.err.println("[ChatLLM] Skipping corrupt RAG log record: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[ChatLLM] Failed to read RAG log: " + e.getMessage());
+        }
+
+        // 次のコンパクションまでの件数に含める
+        logRecordCount.set(replayed);
+
+        if (config.debugMode && replayed > 0) {
+            System.out.println("[ChatLLM] RAG log replayed: " + replayed + " records");
+        }
     }
 
     /**
-     * Instant用のカスタムTypeAdapter
-     * Java 21でGsonがInstantをシリアライズできない問題を回避
+     * 変更ログのレコードを1件適用
      */
-    private static class InstantTypeAdapter extends TypeAdapter<Instant> {
-        @Override
-        public void write(JsonWriter out, Instant value) throws IOException {
-            if (value == null) {
-                out.nullValue();
-            } else {
-                out.value(value.toString());
+    private void applyLogRecord(LogRecord record) {
+        if (record == null || record.op == null) {
+            return;
+        }
+        switch (record.op) {
+            case "put" -> {
+                if (record.key == null || record.entry == null) {
+                    return;
+                }
+                // 埋め込みはログに含めないので、同じテキストのスナップショットの埋め込みを引き継ぐ
+                RAGEntry previous = lookup(record.key);
+                if (previous != null && Objects.equals(previous.originalText, record.entry.originalText)) {
+                    record.entry.embedding = previous.embedding;
+                    record.entry.embeddingModel = previous.embeddingModel;
+                }
+                storage.put(record.key, record.entry);
+            }
+            case "use" -> {
+                RAGEntry entry = record.key != null ? lookup(record.key) : null;
+                if (entry != null) {
+                    entry.useCount = record.useCount;
+                }
+            }
+            case "remove" -> {
+                if (record.key != null) {
+                    removeData(record.key);
+                }
+            }
+            case "clear" -> clearData();
+            default -> {
+                // 未知の操作は無視
             }
         }
+    }
 
-        @Override
-        public Instant read(JsonReader in) throws IOException {
-            if (in.peek() == com.google.gson.stream.JsonToken.NULL) {
-                in.nextNull();
-                return null;
+    /**
+     * 読み込んだエントリを転置インデックス・あいまい一致・意味検索のインデックスに登録（埋め込みが未計算のものはバックグラウンドで少しずつ計算）
+     */
+    private void rebuildIndexes() {
+        invertedIndex.clear();
+        fuzzyIndex.clear();
+        semanticIndex.clear();
+        embeddingBackfill.clear();
+
+        for (Map.Entry<String, RAGEntry> entry : new ArrayList<>(storage.entrySet())) {
+            indexTokens(entry.getKey());
+            if (config.semanticMatchEnabled) {
+                RAGEntry value = entry.getValue();
+                if (!indexEmbedding(entry.getKey(), value.embedding, value.embeddingModel)) {
+                    value.embedding = null; // 使えない埋め込みは保存し直さない
+                    value.embeddingModel = null;
+                }
             }
-            String timestamp = in.nextString();
-            return Instant.parse(timestamp);
         }
+        forEachBaseRecord((key, offset) -> {
+            indexTokens(key);
+            if (config.semanticMatchEnabled) {
+                indexEmbedding(key, baseFile.embedding(offset), baseFile.embeddingModel(offset));
+            }
+        });
+
+        rebuildEvictionQueue();
+    }
+
+    /**
+     * 使用回数と最終使用時刻のスコアが低い順に追い出し候補を並べ直す（読み込み時のみ）
+     * 2回以上使われたエントリは使用済みとして扱い、最初の追い出しの時点で保護に昇格させます
+     */
+    private void rebuildEvictionQueue() {
+        evictionQueue.clear();
+
+        List<Map.Entry<String, Double>> scores = new ArrayList<>(size());
+        Set<String> reused = new HashSet<>();
+        for (Map.Entry<String, RAGEntry> entry : storage.entrySet()) {
+            RAGEntry value = entry.getValue();
+            scores.add(Map.entry(entry.getKey(), retentionScore(value.useCount, value.timestamp.getEpochSecond())));
+            if (value.useCount > 1) {
+                reused.add(entry.getKey());
+            }
+        }
+        forEachBaseRecord((key, offset) -> {
+            int useCount = baseFile.useCount(offset);
+            scores.add(Map.entry(key, retentionScore(useCount, baseFile.timestampMillis(offset) / 1000)));
+            if (useCount > 1) {
+                reused.add(key);
+            }
+        });
+
+        scores.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Double> score : scores) {
+            evictionQueue.add(score.getKey(), reused.contains(score.getKey()));
+        }
+    }
+
+    /**
+     * 保存されていた埋め込みを意味検索のインデックスに登録
+     * 未計算のもの、別のプロバイダや次元数で計算したものは使わず、少しずつ計算し直します
+     *
+     * @return 保存されていた埋め込みを使えた場合true
+     */
+    private boolean indexEmbedding(String key, float[] vector, String model) {
+        if (vector != null && embeddingProvider.id().equals(model)
+                && (semanticIndex.size() == 0 || vector.length == semanticIndex.getDimension())) {
+            semanticIndex.add(key, vector);
+            return true;
+        }
+        embeddingBackfill.add(key);
+        scheduleBackfill();
+        return false;
+    }
+
+    /**
+     * 計算した埋め込みを意味検索のインデックスに登録
+     * インデックスと次元数が異なる場合は、接続先のモデルが変わったとみなしてインデックスを作り直します
+     */
+    private void addToSemanticIndex(String key, float[] vector) {
+        try {
+            semanticIndex.add(key, vector);
+        } catch (IllegalArgumentException e) {
+            resetSemanticIndex(e.getMessage());
+        }
+    }
+
+    /**
+     * 意味検索のインデックスを空にし、全てのエントリの埋め込みを少しずつ計算し直す
+     *
+     * @param reason 作り直す理由（ログ用）
+     */
+    private void resetSemanticIndex(String reason) {
+        System.err.println("[ChatLLM] Embedding dimension changed, recomputing embeddings: " + reason);
+        lock.readLock().lock();
+        try {
+            semanticIndex.clear();
+            embeddingBackfill.clear();
+            embeddingBackfill.addAll(storage.keySet());
+            forEachBaseRecord((key, offset) -> embeddingBackfill.add(key));
+        } finally {
+            lock.readLock().unlock();
+        }
+        scheduleBackfill();
+    }
+
+    /**
+     * 埋め込みを補う次のバッチを予約（予約済みの場合は何もしない）
+     */
+    private void scheduleBackfill() {
+        if (embeddingBackfill.isEmpty() || !backfillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(this::backfillEmbeddings,
+                CompletableFuture.delayedExecutor(backfillInterval, TimeUnit.MILLISECONDS, EMBEDDING_EXECUTOR));
+    }
+
+    /**
+     * 埋め込みのないエントリをEMBEDDING_BACKFILL_BATCH件だけ計算してインデックスに登録（EMBEDDING_EXECUTORで実行）
+     * スナップショットのエントリはデコードしたコピーから計算し、storageには移しません（計算した埋め込みは次のコンパクションで保存）
+     */
+    private void backfillEmbeddings() {
+        backfillScheduled.set(false);
+        for (int i = 0; i < EMBEDDING_BACKFILL_BATCH; i++) {
+            String key = embeddingBackfill.poll();
+            if (key == null) {
+                break;
+            }
+            RAGEntry entry = peek(key);
+            if (entry == null || semanticIndex.contains(key)) {
+                continue; // 削除済み、または追加・参照時に計算済み
+            }
+
+            float[] vector;
+            try {
+                vector = embeddingProvider.embed(entry.originalText);
+            } catch (IOException e) {
+                // サーバーの起動中・停止中は間隔を延ばして後でやり直す
+                embeddingBackfill.add(key);
+                backfillInterval = Math.min(backfillInterval * 2, EMBEDDING_BACKFILL_MAX_INTERVAL_MILLIS);
+                if (config.debugMode) {
+                    System.err.println("[ChatLLM] Failed to backfill embedding, retrying in " + backfillInterval + " ms: " + e.getMessage());
+                }
+                break;
+            }
+            backfillInterval = EMBEDDING_BACKFILL_INTERVAL_MILLIS;
+
+            lock.readLock().lock();
+            try {
+                // 計算中に削除されたエントリは登録しない（削除は書き込みロック内なので競合しない）
+                // インデックスにない埋め込みは未計算か使えないものなので置き換える
+                RAGEntry current = storage.get(key);
+                if (current != null) {
+                    current.embedding = vector;
+                    current.embeddingModel = embeddingProvider.id();
+                } else if (peek(key) == null) {
+                    continue;
+                }
+                addToSemanticIndex(key, vector);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        scheduleBackfill();
+    }
+
+    /**
+     * ストレージをクリア
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearData();
+            embeddingBackfill.clear();
+            invertedIndex.clear();
+            fuzzyIndex.clear();
+            semanticIndex.clear();
+            evictionQueue.clear();
+            appendLog(new LogRecord("clear", null));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * ストレージのサイズを取得（ロックなし、並行して変更中の場合は概数）
+     */
+    public int size() {
+        RAGBinaryFile base = baseFile;
+        int baseRemaining = base != null ? base.size() - shadowedBaseKeys.size() : 0;
+        return storage.size() + baseRemaining;
     }
 }
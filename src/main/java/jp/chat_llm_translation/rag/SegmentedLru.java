@@ -0,0 +1,178 @@
+package jp.chat_llm_translation.rag;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 追い出すエントリを決める2段のLRU（Segmented LRU）
+ * 新しいキーは試用（probation）の末尾に入り、使われたキーは追い出しの時点で保護（protected）に昇格します
+ * 保護があふれたら古いものから試用の末尾に戻し、試用の先頭から追い出します
+ *
+ * 使用時は参照ビットを立てるだけで、リストの移動は追い出しの時に行います（遅延昇格）
+ * 1回の昇格は1回の使用に対応するため、追い出しは償却O(1)で、エントリ数に依存しません
+ *
+ * markUsedはロックなしで呼び出せます。それ以外の操作はRAGStorageの書き込みロック内で使用します
+ */
+public class SegmentedLru {
+    /**
+     * 全体のうち保護に割り当てる割合
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * リストのノード
+     */
+    private static final class Node {
+        final String key;
+        boolean isProtected;
+        volatile boolean referenced;
+        Node prev;
+        Node next;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 双方向リスト（headが最も古く、tailが最も新しい）
+     */
+    private static final class NodeList {
+        Node head;
+        Node tail;
+        int size;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail != null) {
+                tail.next = node;
+            } else {
+                head = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        void remove(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+        }
+    }
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final NodeList probation = new NodeList();
+    private final NodeList protectedList = new NodeList();
+
+    /**
+     * キーを追加（既にある場合は使用として記録）
+     *
+     * @param key エントリのキー
+     * @param referenced 追加時点で使用済みとして扱うか（読み込み時に使用回数のあるエントリ）
+     */
+    public void add(String key, boolean referenced) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            node.referenced = true;
+            return;
+        }
+        node = new Node(key);
+        node.referenced = referenced;
+        nodes.put(key, node);
+        probation.addLast(node);
+    }
+
+    /**
+     * キーの使用を記録（参照ビットを立てるだけで、リストは移動しない、ロックなしで呼び出せる）
+     *
+     * @param key エントリのキー
+     */
+    public void markUsed(String key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            node.referenced = true;
+        }
+    }
+
+    /**
+     * キーを削除
+     *
+     * @param key エントリのキー
+     */
+    public void remove(String key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            (node.isProtected ? protectedList : probation).remove(node);
+        }
+    }
+
+    /**
+     * 全てのキーを削除
+     */
+    public void clear() {
+        nodes.clear();
+        probation.clear();
+        protectedList.clear();
+    }
+
+    /**
+     * 登録されているキー数を取得
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * 追い出すキーを1つ選んで削除
+     *
+     * @return 追い出したキー、空の場合はnull
+     */
+    public String evict() {
+        // 並行して参照ビットが立ち続けても、全体を一巡したら参照の有無にかかわらず追い出す
+        for (int scanned = 0; ; scanned++) {
+            // 保護があふれていれば古いものを試用に戻す（もう一度使われるまでは昇格しない）
+            int maxProtected = (int) (nodes.size() * PROTECTED_RATIO);
+            while (protectedList.size > maxProtected) {
+                Node demoted = protectedList.head;
+                protectedList.remove(demoted);
+                demoted.isProtected = false;
+                demoted.referenced = false;
+                probation.addLast(demoted);
+            }
+
+            Node node = probation.head != null ? probation.head : protectedList.head;
+            if (node == null) {
+                return null;
+            }
+
+            if (node.referenced && scanned < nodes.size()) {
+                // 使われていたキーは保護の末尾に昇格して、次の候補を見る
+                node.referenced = false;
+                (node.isProtected ? protectedList : probation).remove(node);
+                node.isProtected = true;
+                protectedList.addLast(node);
+                continue;
+            }
+
+            remove(node.key);
+            return node.key;
+        }
+    }
+}
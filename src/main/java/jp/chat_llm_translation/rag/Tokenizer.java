@@ -0,0 +1,29 @@
+package jp.chat_llm_translation.rag;
+
+import java.util.Set;
+
+/**
+ * RAGストレージの類似度計算に使用するトークナイザ
+ */
+public interface Tokenizer {
+    /**
+     * テキストをトークンの集合に分割
+     *
+     * @param text 対象のテキスト
+     * @return トークンの集合（小文字化済み）
+     */
+    Set<String> tokenize(String text);
+
+    /**
+     * 設定名からトークナイザを作成
+     *
+     * @param name "word"（空白区切りの単語）または "ngram"（CJKは文字n-gram）
+     * @return トークナイザ（不明な名前の場合は "ngram"）
+     */
+    static Tokenizer fromName(String name) {
+        if ("word".equalsIgnoreCase(name)) {
+            return new WordTokenizer();
+        }
+        return new NGramTokenizer();
+    }
+}
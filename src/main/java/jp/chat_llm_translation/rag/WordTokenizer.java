@@ -0,0 +1,18 @@
+package jp.chat_llm_translation.rag;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 空白区切りの単語に分割するトークナイザ
+ * 日本語・中国語のように空白で区切らない文は1つのトークンになります
+ */
+public class WordTokenizer implements Tokenizer {
+    @Override
+    public Set<String> tokenize(String text) {
+        return Arrays.stream(text.toLowerCase().split("\\s+"))
+                .filter(word -> word.length() > 1) // 1文字の単語は除外
+                .collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,353 @@
+package jp.chat_llm_translation.storage;
+
+import jp.chat_llm_translation.Chat_llm_translation;
+import jp.chat_llm_translation.chat.ChatHistory;
+import jp.chat_llm_translation.chat.ChatHistory.ChatEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * サーバーごとのチャット履歴を追記専用のセグメントファイル（chat-history-N.log）に保存するクラス
+ * 追加されたエントリはキューに積み、I/Oスレッドでまとめて追記します
+ * 参加時は新しいセグメントから読み込み、最後のN件だけをデコードして履歴に戻します
+ *
+ * セグメントが上限の半分を超えたら次の番号のセグメントに切り替え、直前の1つより古いセグメントは削除します
+ * そのため合計サイズはおおよそ上限以内に収まります
+ * セグメントは小さいので、マップせずにヒープに読み込みます
+ * マップしたままだと、Windowsではそのファイルへの追記・切り詰め・削除ができないためです
+ * セグメントは追記と削除のみ行います（書き込み途中で壊れたセグメントには追記せず、次の番号から書きます）
+ *
+ * セグメントの構成:
+ * <pre>
+ * [ヘッダー 8バイト] magic, version
+ * [レコード]...      length(int), ペイロード, ペイロードのCRC32(int)
+ * </pre>
+ * ペイロード: timestamp(long, エポックミリ秒), isOutgoing(byte), playerName, originalMessage, translatedMessage
+ * 文字列はバイト長(int、nullは-1)とUTF-8のバイト列です
+ *
+ * load・flushはI/Oスレッドから呼び出します。onAdded・onClearedはどのスレッドからでも呼び出せます
+ */
+public class ChatHistoryFile implements ChatHistory.Listener {
+    private static final int MAGIC = 0x434C4348; // "CLCH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final String PREFIX = "chat-history-";
+    private static final String SUFFIX = ".log";
+
+    /**
+     * レコードの長さ・CRCのバイト数
+     */
+    private static final int RECORD_OVERHEAD = Integer.BYTES * 2;
+
+    private final Path directory;
+    private final Executor ioExecutor;
+    private final long segmentMaxBytes;
+
+    private final Queue<ChatEntry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // 以下はI/Oスレッドからのみ使用
+    private long activeSegment = -1;
+    private long activeSize;
+
+    /**
+     * コンストラクタ
+     *
+     * @param directory セグメントを置くディレクトリ（サーバーのストレージディレクトリ）
+     * @param ioExecutor 書き込みを行うI/Oスレッド
+     * @param maxBytes セグメントの合計の上限サイズ（バイト）
+     */
+    public ChatHistoryFile(Path directory, Executor ioExecutor, long maxBytes) {
+        this.directory = directory;
+        this.ioExecutor = ioExecutor;
+        this.segmentMaxBytes = Math.max(HEADER_SIZE * 2, maxBytes / 2);
+    }
+
+    /**
+     * 保存されている最後のN件を読み込む（I/Oスレッドから呼び出す）
+     *
+     * @param maxEntries 読み込む最大件数
+     * @return エントリ（古い順）
+     */
+    public List<ChatEntry> load(int maxEntries) {
+        List<Long> segments = listSegments();
+        activeSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        activeSize = 0;
+
+        List<ChatEntry> entries = new ArrayList<>();
+        for (int i = segments.size() - 1; i >= 0 && entries.size() < maxEntries; i--) {
+            Path path = segmentPath(segments.get(i));
+            try {
+                ByteBuffer buffer = read(path);
+                List<Integer> offsets = scanRecords(buffer);
+                int validEnd = offsets.remove(offsets.size() - 1);
+
+                // 最新のセグメントが壊れていなければ、続けて追記する
+                if (i == segments.size() - 1 && validEnd == buffer.capacity() && validEnd < segmentMaxBytes) {
+                    activeSegment = segments.get(i);
+                    activeSize = validEnd;
+                } else if (validEnd < buffer.capacity()) {
+                    Chat_llm_translation.LOGGER.warn("[ChatLLM] Ignoring {} bytes of incomplete chat history: {}",
+                            buffer.capacity() - validEnd, path);
+                }
+
+                for (int j = offsets.size() - 1; j >= 0 && entries.size() < maxEntries; j--) {
+                    entries.add(readRecord(buffer, offsets.get(j)));
+                }
+            } catch (IOException | RuntimeException e) {
+                Chat_llm_translation.LOGGER.warn("[ChatLLM] Skipping unreadable chat history segment: {}", path, e);
+            }
+        }
+
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    @Override
+    public void onAdded(ChatEntry entry) {
+        pending.add(entry);
+        if (flushScheduled.compareAndSet(false, true)) {
+            // I/Oスレッドが空くまでに追加されたエントリは1回の書き込みにまとめる
+            ioExecutor.execute(this::flush);
+        }
+    }
+
+    @Override
+    public void onCleared() {
+        ioExecutor.execute(() -> {
+            pending.clear();
+            for (long segment : listSegments()) {
+                try {
+                    Files.deleteIfExists(segmentPath(segment));
+                } catch (IOException e) {
+                    Chat_llm_translation.LOGGER.warn("[ChatLLM] Failed to delete chat history segment: {}", segmentPath(segment), e);
+                }
+            }
+            // 削除できなかったセグメントがあっても、以降は新しい番号に書く
+            activeSegment = Math.max(activeSegment, 0) + 1;
+            activeSize = 0;
+        });
+    }
+
+    /**
+     * キューに積まれたエントリを追記する（I/Oスレッドから呼び出す）
+     */
+    public void flush() {
+        flushScheduled.set(false);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (activeSegment < 0) {
+                List<Long> segments = listSegments();
+                activeSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+                activeSize = 0;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (activeSize == 0) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            int count = 0;
+            ChatEntry entry;
+            while ((entry = pending.poll()) != null) {
+                writeRecord(out, entry);
+                count++;
+            }
+
+            Files.createDirectories(directory);
+            Path path = segmentPath(activeSegment);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    activeSize == 0 ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                activeSize = channel.size();
+            }
+            Chat_llm_translation.LOGGER.debug("[ChatLLM] Appended {} chat history entries: {}", count, path);
+
+            if (activeSize >= segmentMaxBytes) {
+                rollOver();
+            }
+        } catch (IOException e) {
+            Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to write chat history: {}", directory, e);
+        }
+    }
+
+    /**
+     * 次のセグメントに切り替え、直前のセグメントより古いものを削除する
+     */
+    private void rollOver() {
+        long previous = activeSegment;
+        activeSegment++;
+        activeSize = 0;
+        for (long segment : listSegments()) {
+            if (segment >= previous) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                // 他のプロセス（ウイルス対策ソフトやバックアップなど）が開いている場合は次回に削除する
+            }
+        }
+    }
+
+    /**
+     * セグメントの番号を古い順に取得
+     */
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // 関係のないファイル
+                    }
+                }
+            });
+        } catch (IOException e) {
+            return segments;
+        }
+        segments.sort(Comparator.naturalOrder());
+        return segments;
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(PREFIX + segment + SUFFIX);
+    }
+
+    /**
+     * セグメントを読み込んでヘッダーを検証する（読み終えたらファイルは閉じる）
+     */
+    private static ByteBuffer read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE - 8) {
+                throw new IOException("Invalid chat history segment size: " + size);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Chat history segment truncated while reading: " + path);
+                }
+            }
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a chat history segment: " + path);
+        }
+        return buffer;
+    }
+
+    /**
+     * 正しいレコードのオフセットを順に集める
+     *
+     * @return レコードのオフセット（最後の要素は正しいレコードの終端）
+     */
+    private static List<Integer> scanRecords(ByteBuffer buffer) {
+        List<Integer> offsets = new ArrayList<>();
+        int position = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < 0 || (long) position + RECORD_OVERHEAD + length > buffer.capacity()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(position + Integer.BYTES, length));
+            if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES + length)) {
+                break;
+            }
+            offsets.add(position);
+            position += RECORD_OVERHEAD + length;
+        }
+        offsets.add(position);
+        return offsets;
+    }
+
+    /**
+     * レコードを書き込む
+     */
+    private static void writeRecord(DataOutputStream out, ChatEntry entry) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(entry.timestamp.toEpochMilli());
+        payload.writeByte(entry.isOutgoing ? 1 : 0);
+        writeString(payload, entry.playerName);
+        writeString(payload, entry.originalMessage);
+        writeString(payload, entry.translatedMessage);
+
+        byte[] data = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * 指定位置のレコードを読み込む（絶対位置指定のみ）
+     */
+    private static ChatEntry readRecord(ByteBuffer buffer, int offset) {
+        int position = offset + Integer.BYTES;
+        long timestamp = buffer.getLong(position);
+        boolean isOutgoing = buffer.get(position + Long.BYTES) != 0;
+        int[] cursor = {position + Long.BYTES + 1};
+        String playerName = readString(buffer, cursor);
+        String originalMessage = readString(buffer, cursor);
+        String translatedMessage = readString(buffer, cursor);
+        return new ChatEntry(playerName, originalMessage, translatedMessage, isOutgoing, Instant.ofEpochMilli(timestamp));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, int[] cursor) {
+        int length = buffer.getInt(cursor[0]);
+        cursor[0] += Integer.BYTES;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(cursor[0], bytes);
+        cursor[0] += length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
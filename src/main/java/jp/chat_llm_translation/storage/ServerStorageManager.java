@@ -9,12 +9,23 @@ import net.fabricmc.loader.api.FabricLoader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * サーバーごとのストレージを管理するクラス
  * サーバーアドレスをキーにして、RAGStorageとChatHistoryを個別に管理します
+ *
+ * RAGStorageの読み込みと保存はバックグラウンドのI/Oスレッドで行い、
+ * 参加・切断の処理（ネットワークスレッド）をブロックしません
+ * 読み込みが終わるまではRAGStorageはnullとなり、翻訳はRAGなしでLLMに送られます
+ *
+ * チャット履歴もサーバーごとのディレクトリに追記していき、次に参加したときにRAGStorageより先に読み込んで復元します
  */
 public class ServerStorageManager {
     private static final Path STORAGE_ROOT = FabricLoader.getInstance()
@@ -23,34 +34,86 @@ public class ServerStorageManager {
             .resolve("servers");
 
     private final Map<String, ServerStorage> storages;
-    private ServerStorage currentServerStorage;
-    private String currentServerAddress;
-    private final ModConfig config;
+    private volatile ServerStorage currentServerStorage;
+    private volatile String currentServerAddress;
+    private final ExecutorService ioExecutor;
 
     /**
      * サーバーごとのストレージを保持するクラス
      */
     public static class ServerStorage {
-        public final RAGStorage ragStorage;
+        public final CompletableFuture<RAGStorage> ragStorageFuture;
         public final ChatHistory chatHistory;
         public final String serverAddress;
         public final Path storagePath;
+        private final ChatHistoryFile chatHistoryFile;
 
-        public ServerStorage(String serverAddress, Path storagePath) {
+        public ServerStorage(String serverAddress, Path storagePath, ExecutorService ioExecutor) {
             this.serverAddress = serverAddress;
             this.storagePath = storagePath;
-
-            // サーバーごとのRAGストレージを初期化
-            this.ragStorage = new RAGStorage(storagePath.resolve("rag.json"));
             this.chatHistory = new ChatHistory();
 
+            // 前回のチャット履歴を復元する（RAGStorageより先に読み込み、以降の追加はI/Oスレッドで追記）
+            ModConfig config = ModConfig.getInstance();
+            if (config.persistChatHistory) {
+                this.chatHistoryFile = new ChatHistoryFile(storagePath, ioExecutor, config.chatHistoryFileMaxKb * 1024L);
+                this.chatHistory.setListener(chatHistoryFile);
+                ioExecutor.execute(() -> {
+                    List<ChatHistory.ChatEntry> entries = chatHistoryFile.load(config.chatHistorySize);
+                    if (!entries.isEmpty()) {
+                        chatHistory.restore(entries);
+                        Chat_llm_translation.LOGGER.info("[ChatLLM] Restored {} chat history entries for server: {}",
+                                entries.size(), serverAddress);
+                    }
+                });
+            } else {
+                this.chatHistoryFile = null;
+            }
+
+            // サーバーごとのRAGストレージをバックグラウンドで読み込む
+            long startTime = System.currentTimeMillis();
+            this.ragStorageFuture = CompletableFuture.supplyAsync(() -> {
+                try {
+                    Files.createDirectories(storagePath);
+                } catch (IOException e) {
+                    Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to create server storage directory: {}", serverAddress, e);
+                }
+                return new RAGStorage(storagePath.resolve("rag.json"));
+            }, ioExecutor);
+            this.ragStorageFuture.whenComplete((ragStorage, ex) -> {
+                if (ex != null) {
+                    Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to load storage for server: {}", serverAddress, ex);
+                } else {
+                    Chat_llm_translation.LOGGER.info("[ChatLLM] Loaded storage for server: {} ({} entries, {} ms)",
+                            serverAddress, ragStorage.size(), System.currentTimeMillis() - startTime);
+                }
+            });
+
             Chat_llm_translation.LOGGER.info("[ChatLLM] Created storage for server: {}", serverAddress);
         }
 
         /**
-         * このサーバーのストレージを保存
+         * このサーバーのRAGStorageを取得
+         *
+         * @return RAGStorage（読み込み中・読み込み失敗の場合はnull）
+         */
+        public RAGStorage getRAGStorage() {
+            return ragStorageFuture.isDone() && !ragStorageFuture.isCompletedExceptionally()
+                    ? ragStorageFuture.join()
+                    : null;
+        }
+
+        /**
+         * このサーバーのストレージを保存（I/Oスレッドから呼び出す）
          */
         public void save() {
+            if (chatHistoryFile != null) {
+                chatHistoryFile.flush();
+            }
+            RAGStorage ragStorage = getRAGStorage();
+            if (ragStorage == null) {
+                return;
+            }
             ragStorage.save();
             Chat_llm_translation.LOGGER.info("[ChatLLM] Saved storage for server: {}", serverAddress);
         }
@@ -59,7 +122,10 @@ public class ServerStorageManager {
          * このサーバーのストレージをクリア
          */
         public void clear() {
-            ragStorage.clear();
+            RAGStorage ragStorage = getRAGStorage();
+            if (ragStorage != null) {
+                ragStorage.clear();
+            }
             chatHistory.clear();
             Chat_llm_translation.LOGGER.info("[ChatLLM] Cleared storage for server: {}", serverAddress);
         }
@@ -69,10 +135,14 @@ public class ServerStorageManager {
      * コンストラクタ
      */
     public ServerStorageManager() {
-        this.config = ModConfig.getInstance();
-        this.storages = new HashMap<>();
+        this.storages = new ConcurrentHashMap<>();
         this.currentServerStorage = null;
         this.currentServerAddress = null;
+        this.ioExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "chat-llm-translation-storage-io");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         // ストレージルートディレクトリを作成
         try {
@@ -84,42 +154,58 @@ public class ServerStorageManager {
 
     /**
      * サーバーに参加した時の処理
+     * 前のサーバーの保存と新しいサーバーの読み込みはI/Oスレッドで行い、すぐに戻ります
      *
      * @param serverAddress サーバーアドレス（null の場合はシングルプレイ）
+     * @return 新しいサーバーのRAGStorageの読み込み完了
      */
-    public void onServerJoin(String serverAddress) {
+    public CompletableFuture<RAGStorage> onServerJoin(String serverAddress) {
         // サーバーアドレスの正規化
         String normalizedAddress = normalizeServerAddress(serverAddress);
 
         Chat_llm_translation.LOGGER.info("[ChatLLM] Joining server: {}", normalizedAddress);
 
-        // 既存のストレージがあれば保存
-        if (currentServerStorage != null) {
-            currentServerStorage.save();
+        // 既存のストレージがあれば保存（読み込みより先にI/Oスレッドに積む）
+        ServerStorage previous = currentServerStorage;
+        if (previous != null) {
+            saveInBackground(previous);
         }
 
-        // このサーバーのストレージを取得または作成
+        // このサーバーのストレージを取得または作成し、切り替える
+        // RAGStorageは読み込みが終わった時点で参照できるようになる
+        ServerStorage storage = getOrCreateStorage(normalizedAddress);
         currentServerAddress = normalizedAddress;
-        currentServerStorage = getOrCreateStorage(normalizedAddress);
-
-        // 全キャッシュ読み込みが有効な場合
-        if (config.loadFullCacheOnJoin) {
-            loadFullCacheForServer(normalizedAddress);
-        }
+        currentServerStorage = storage;
+        return storage.ragStorageFuture;
     }
 
     /**
      * サーバーから切断した時の処理
      */
     public void onServerLeave() {
-        if (currentServerStorage != null) {
+        ServerStorage storage = currentServerStorage;
+        if (storage != null) {
             Chat_llm_translation.LOGGER.info("[ChatLLM] Leaving server: {}", currentServerAddress);
-            currentServerStorage.save();
             currentServerStorage = null;
             currentServerAddress = null;
+            saveInBackground(storage);
         }
     }
 
+    /**
+     * ストレージをI/Oスレッドで保存
+     */
+    private void saveInBackground(ServerStorage storage) {
+        // 読み込み中の場合は読み込み完了後に保存する（同じI/Oスレッドで順に実行される）
+        ioExecutor.execute(() -> {
+            try {
+                storage.save();
+            } catch (Exception e) {
+                Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to save storage for server: {}", storage.serverAddress, e);
+            }
+        });
+    }
+
     /**
      * 現在のサーバーのストレージを取得
      *
@@ -135,7 +221,8 @@ public class ServerStorageManager {
      * @return RAGStorage（接続中でない場合はnull）
      */
     public RAGStorage getCurrentRAGStorage() {
-        return currentServerStorage != null ? currentServerStorage.ragStorage : null;
+        ServerStorage storage = currentServerStorage;
+        return storage != null ? storage.getRAGStorage() : null;
     }
 
     /**
@@ -144,46 +231,28 @@ public class ServerStorageManager {
      * @return ChatHistory（接続中でない場合はnull）
      */
     public ChatHistory getCurrentChatHistory() {
-        return currentServerStorage != null ? currentServerStorage.chatHistory : null;
+        ServerStorage storage = currentServerStorage;
+        return storage != null ? storage.chatHistory : null;
     }
 
     /**
-     * すべてのサーバーのストレージを保存
+     * すべてのサーバーのストレージを保存（完了まで待機）
+     * 実行中の読み込み・保存が終わってから保存します
      */
     public void saveAll() {
         Chat_llm_translation.LOGGER.info("[ChatLLM] Saving all server storages ({} servers)", storages.size());
 
-        for (ServerStorage storage : storages.values()) {
-            storage.save();
-        }
-
-        if (currentServerStorage != null) {
-            currentServerStorage.save();
-        }
-    }
-
-    /**
-     * 指定サーバーの全キャッシュをLLMコンテキストに読み込む
-     *
-     * @param serverAddress サーバーアドレス
-     */
-    private void loadFullCacheForServer(String serverAddress) {
-        ServerStorage storage = storages.get(serverAddress);
-        if (storage == null || storage.ragStorage == null) {
-            Chat_llm_translation.LOGGER.info("[ChatLLM] No cache to load for server: {}", serverAddress);
-            return;
+        try {
+            ioExecutor.submit(() -> {
+                for (ServerStorage storage : storages.values()) {
+                    storage.save();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to save server storages", e.getCause());
         }
-
-        int cacheSize = storage.ragStorage.size();
-        int loadLimit = Math.min(cacheSize, config.maxCacheLoadOnJoin);
-
-        Chat_llm_translation.LOGGER.info("[ChatLLM] Loading {} cache entries (out of {}) for server: {}",
-                loadLimit, cacheSize, serverAddress);
-
-        // RAGストレージから全エントリを取得してChatHistoryに追加
-        // （実際のLLMコンテキスト読み込みは翻訳時に行われる）
-
-        Chat_llm_translation.LOGGER.info("[ChatLLM] Cache loading complete for server: {}", serverAddress);
     }
 
     /**
@@ -211,14 +280,13 @@ public class ServerStorageManager {
      * @return ServerStorage
      */
     private ServerStorage getOrCreateStorage(String serverAddress) {
-        return storages.computeIfAbsent(serverAddress, addr -> {
-            Path serverPath = STORAGE_ROOT.resolve(addr);
-            try {
-                Files.createDirectories(serverPath);
-            } catch (IOException e) {
-                Chat_llm_translation.LOGGER.error("[ChatLLM] Failed to create server storage directory: {}", addr, e);
-            }
-            return new ServerStorage(addr, serverPath);
-        });
+        // 前回の読み込みに失敗していれば読み込み直す
+        ServerStorage existing = storages.get(serverAddress);
+        if (existing != null && existing.ragStorageFuture.isCompletedExceptionally()) {
+            storages.remove(serverAddress, existing);
+        }
+
+        return storages.computeIfAbsent(serverAddress,
+                addr -> new ServerStorage(addr, STORAGE_ROOT.resolve(addr), ioExecutor));
     }
 }